@@ -0,0 +1,64 @@
+package com.justdebugit.metrics.influxdb;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InfluxdbEvents} 生产者写入一个事件的耗时，消费线程写到只计数的 {@link Influxdb}，缓冲满时丢弃
+ *
+ * @author justdebugit
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventsBenchmark {
+    private InfluxdbEvents events;
+
+    @Setup
+    public void setup() {
+        Influxdb sink = new Influxdb() {
+            @Override
+            public void writeData(SinglePoint singlePoint) {
+            }
+
+            @Override
+            public void write(LineProtocolWriter lines) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public TimeUnit getPrecision() {
+                return TimeUnit.NANOSECONDS;
+            }
+        };
+        events = InfluxdbEvents.newBuilder(sink).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        events.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void publishSingleThread() {
+        publish();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void publishFourThreads() {
+        publish();
+    }
+
+    private void publish() {
+        events.event("trade").tag("symbol", "600000").field("latency_us", 125L).field("price", 10.25).publish();
+    }
+}
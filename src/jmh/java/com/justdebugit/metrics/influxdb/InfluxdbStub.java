@@ -0,0 +1,64 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的influxdb写接口桩，读完请求体后返回204，用于基准测试中不依赖真实的influxdb
+ *
+ * @author justdebugit
+ */
+class InfluxdbStub implements HttpHandler {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    InfluxdbStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/write", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] buf = new byte[8192];
+        long read = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                read += n;
+            }
+        }
+        requests.incrementAndGet();
+        bytes.addAndGet(read);
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,51 @@
+package com.justdebugit.metrics.influxdb;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个point的编码:SinglePoint.toString 与复用 {@link LineProtocolWriter} 的写法对比
+ *
+ * @author justdebugit
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineProtocolBenchmark {
+    private SinglePoint point;
+    private final LineProtocolWriter writer = new LineProtocolWriter();
+
+    @Setup
+    public void setup() {
+        point = SinglePoint.newBuilder("app_rpc_timer")
+                .addTag("host", "web-01.example.com")
+                .addTag("service", "order")
+                .addField("latency_count", 123456L)
+                .addField("latency_mean_rate", 1024.5)
+                .addField("latency_m1_rate", 998.25)
+                .addField("latency_max", 120.5)
+                .addField("latency_mean", 3.75)
+                .addField("latency_min", 0.25)
+                .addField("latency_p50", 2.5)
+                .addField("latency_p75", 4.0)
+                .addField("latency_p99", 48.75)
+                .setTimestamp(1484491200000000000L)
+                .build();
+    }
+
+    @Benchmark
+    public String singlePointToString() {
+        return point.toString();
+    }
+
+    @Benchmark
+    public int singlePointWriteTo() {
+        writer.reset();
+        point.writeTo(writer);
+        return writer.size();
+    }
+}
@@ -0,0 +1,124 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各类metric读取并写出field的开销，timer、histogram包含getSnapshot的复制排序
+ *
+ * @author justdebugit
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeasurementFieldsBenchmark {
+    private static final MeasurementFields.ReporterDelegate DELEGATE = new MeasurementFields.ReporterDelegate() {
+        @Override
+        public double convertRate(double rate) {
+            return rate;
+        }
+
+        @Override
+        public double convertDuration(double duration) {
+            return duration / 1000000.0;
+        }
+    };
+
+    private final LineProtocolWriter writer = new LineProtocolWriter();
+    private Timer timer;
+    private IntervalTimer intervalTimer;
+    private Histogram histogram;
+    private IntervalHistogram intervalHistogram;
+    private Meter meter;
+    private Counter counter;
+    private Gauge<Double> gauge;
+
+    private byte[][] timerKeys;
+    private byte[][] histogramKeys;
+    private byte[][] meterKeys;
+    private byte[][] counterKeys;
+    private byte[][] gaugeKeys;
+
+    @Setup
+    public void setup() {
+        timer = new Timer();
+        intervalTimer = new IntervalTimer();
+        histogram = new Histogram(new ExponentiallyDecayingReservoir());
+        intervalHistogram = new IntervalHistogram();
+        meter = new Meter();
+        counter = new Counter();
+        gauge = new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 0.75;
+            }
+        };
+        for (int i = 0; i < 2000; i++) {
+            timer.update(i, TimeUnit.MICROSECONDS);
+            histogram.update(i);
+            meter.mark();
+            counter.inc();
+        }
+        timerKeys = MeasurementFields.TIMER.encodeFieldKeys("latency_");
+        histogramKeys = MeasurementFields.HISTOGRAM.encodeFieldKeys("size_");
+        meterKeys = MeasurementFields.METER.encodeFieldKeys("requests_");
+        counterKeys = MeasurementFields.COUNTER.encodeFieldKeys("pending_");
+        gaugeKeys = MeasurementFields.GAUGE.encodeFieldKeys("load_");
+    }
+
+    @Benchmark
+    public long timer() {
+        writer.reset();
+        return MeasurementFields.TIMER.writeFields(timerKeys, timer, DELEGATE, writer);
+    }
+
+    /**
+     * 每次调用前记录一批数值，模拟一个上报区间
+     */
+    @Benchmark
+    public long intervalTimer() {
+        for (int i = 0; i < 100; i++) {
+            intervalTimer.update(i, TimeUnit.MICROSECONDS);
+        }
+        writer.reset();
+        return MeasurementFields.TIMER.writeFields(timerKeys, intervalTimer, DELEGATE, writer);
+    }
+
+    @Benchmark
+    public long histogram() {
+        writer.reset();
+        return MeasurementFields.HISTOGRAM.writeFields(histogramKeys, histogram, DELEGATE, writer);
+    }
+
+    @Benchmark
+    public long intervalHistogram() {
+        for (int i = 0; i < 100; i++) {
+            intervalHistogram.update(i);
+        }
+        writer.reset();
+        return MeasurementFields.HISTOGRAM.writeFields(histogramKeys, intervalHistogram, DELEGATE, writer);
+    }
+
+    @Benchmark
+    public long meter() {
+        writer.reset();
+        return MeasurementFields.METER.writeFields(meterKeys, meter, DELEGATE, writer);
+    }
+
+    @Benchmark
+    public long counter() {
+        writer.reset();
+        return MeasurementFields.COUNTER.writeFields(counterKeys, counter, DELEGATE, writer);
+    }
+
+    @Benchmark
+    public long gauge() {
+        writer.reset();
+        return MeasurementFields.GAUGE.writeFields(gaugeKeys, gauge, DELEGATE, writer);
+    }
+}
@@ -0,0 +1,56 @@
+package com.justdebugit.metrics.influxdb;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InfluxdbMetrics} 中metric名称解析的开销，以及 {@link SeriesTemplates} 缓存命中时的开销
+ *
+ * @author justdebugit
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricNameBenchmark {
+    @Param({"[rpc].order.create.latency", "[rpc|service=order,method=create].latency", "plain_timer"})
+    public String name;
+
+    private SeriesTemplates templates;
+
+    @Setup
+    public void setup() {
+        templates = new SeriesTemplates("app", Collections.singletonMap("host", "web-01"));
+        templates.get(name, "timer", MeasurementFields.TIMER);
+    }
+
+    @Benchmark
+    public String resolveMeasurement() {
+        return InfluxdbMetrics.resolveMeasurement(name);
+    }
+
+    @Benchmark
+    public String resolveMeasurementFieldPrefix() {
+        return InfluxdbMetrics.resolveMeasurementFieldPrefix(name);
+    }
+
+    @Benchmark
+    public Map<String, String> getTagFromMetricName() {
+        return InfluxdbMetrics.getTagFromMetricName(InfluxdbMetrics.resolveMeasurement(name));
+    }
+
+    @Benchmark
+    public String makeMeasurementName() {
+        return InfluxdbMetrics.makeMeasurementName("app", InfluxdbMetrics.resolveMeasurement(name), "timer");
+    }
+
+    @Benchmark
+    public Object cachedTemplate() {
+        return templates.get(name, "timer", MeasurementFields.TIMER);
+    }
+}
@@ -0,0 +1,82 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 完整的一次 {@link InfluxdbReporter#report()}:采集、编码并通过 {@link InfluxdbHttp} 发送到进程内的 {@link InfluxdbStub}
+ * <p>
+ * registry中counter、meter、histogram、timer、gauge各占1/5，每10个metric一个measurement分组
+ *
+ * @author justdebugit
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int metrics;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private InfluxdbStub stub;
+    private InfluxdbHttp influxdb;
+    private InfluxdbReporter reporter;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new InfluxdbStub();
+        influxdb = InfluxdbHttp.newBuilder().host("127.0.0.1").port(stub.getPort()).dbName("bench").build();
+        MetricRegistry registry = new MetricRegistry();
+        for (int i = 0; i < metrics; i++) {
+            String name = "[group" + (i / 10) + "].metric" + i;
+            switch (i % 5) {
+                case 0:
+                    registry.counter(name).inc(i);
+                    break;
+                case 1:
+                    registry.meter(name).mark(i);
+                    break;
+                case 2:
+                    Histogram histogram = registry.histogram(name);
+                    for (int v = 0; v < 100; v++) {
+                        histogram.update(v);
+                    }
+                    break;
+                case 3:
+                    Timer timer = registry.timer(name);
+                    for (int v = 0; v < 100; v++) {
+                        timer.update(v, TimeUnit.MICROSECONDS);
+                    }
+                    break;
+                default:
+                    final double value = i;
+                    registry.register(name, new Gauge<Double>() {
+                        @Override
+                        public Double getValue() {
+                            return value;
+                        }
+                    });
+            }
+        }
+        reporter = InfluxdbReporter.forRegistry(registry).appName("bench").parallelism(parallelism).build(influxdb);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reporter.stop();
+        influxdb.close();
+        stub.stop();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report();
+    }
+}
@@ -6,11 +6,13 @@ import org.apache.commons.lang3.SystemUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.net.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -86,6 +88,10 @@ public class OSUtil {
         if (StringUtils.isNotEmpty(hostname)) {
             return hostname;
         }
+        hostname = getHostNameFromProc();
+        if (StringUtils.isNotEmpty(hostname)) {
+            return hostname;
+        }
         hostname = getHostNameFromCommand();
         if (StringUtils.isNotEmpty(hostname)) {
             return hostname;
@@ -106,6 +112,26 @@ public class OSUtil {
         return "";
     }
 
+    /**
+     * linux下直接读取内核中的主机名，不需要启动hostname进程
+     *
+     * @return
+     */
+    private static String getHostNameFromProc() {
+        if (!SystemUtils.IS_OS_LINUX) {
+            return "";
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream("/proc/sys/kernel/hostname");
+            return IOUtils.toString(in, StandardCharsets.US_ASCII).trim();
+        } catch (IOException e) {
+            return "";
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
     private static String getHostNameFromCommand() {
         if (SystemUtils.IS_OS_WINDOWS) {
             return readFromCommand("hostname.exe");
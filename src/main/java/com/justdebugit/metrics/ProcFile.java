@@ -0,0 +1,216 @@
+package com.justdebugit.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 反复读取同一个/proc文件:文件保持打开，每次从头读到复用的缓冲中，按行、按空白分隔的token顺序解析，
+ * 解析数值及比较名称都不创建对象
+ * <p>
+ * 非线程安全，由 {@link ProcMetricSet} 在锁内使用
+ *
+ * @author justdebugit
+ */
+class ProcFile {
+    private final File file;
+    private final boolean exists;//构造时确定，之后不再检查
+    private RandomAccessFile raf;
+    private byte[] buf = new byte[4096];
+    private int len;
+    private int pos;
+
+    ProcFile(File file) {
+        this.file = file;
+        this.exists = file.canRead();
+    }
+
+    boolean exists() {
+        return exists;
+    }
+
+    /**
+     * 读取整个文件，/proc下的文件seek到开头后重新读取即得到最新内容
+     *
+     * @throws IOException
+     */
+    void read() throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "r");
+        }
+        try {
+            raf.seek(0);
+            len = 0;
+            int n;
+            while ((n = raf.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+                if (len == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            pos = 0;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+        }
+        len = pos = 0;
+    }
+
+    /**
+     * 移到下一行开头
+     *
+     * @return 是否还有内容
+     */
+    boolean nextLine() {
+        while (pos < len && buf[pos] != '\n') {
+            pos++;
+        }
+        if (pos < len) {
+            pos++;
+        }
+        return pos < len;
+    }
+
+    boolean hasMore() {
+        return pos < len;
+    }
+
+    /**
+     * 当前位置是否以prefix开头，是则跳过prefix
+     *
+     * @param prefix
+     * @return
+     */
+    boolean skip(byte[] prefix) {
+        if (len - pos < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        pos += prefix.length;
+        return true;
+    }
+
+    /**
+     * 跳过空白后读取一个以空白或':'结尾的token，在names中查找，找到时跳过该token及其后的':'
+     *
+     * @param names
+     * @return 下标，未找到返回-1且位置不变
+     */
+    int matchToken(byte[][] names) {
+        int begin = pos;
+        skipBlanks();
+        int start = pos;
+        while (pos < len && !isBlank(buf[pos]) && buf[pos] != ':') {
+            pos++;
+        }
+        int tokenLen = pos - start;
+        if (pos < len && buf[pos] == ':') {
+            pos++;
+        }
+        outer:
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length != tokenLen) {
+                continue;
+            }
+            for (int j = 0; j < tokenLen; j++) {
+                if (names[i][j] != buf[start + j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        pos = begin;
+        return -1;
+    }
+
+    /**
+     * 读取一个以空白或':'结尾的token为字符串，不跳过':'，只在初始化时使用
+     *
+     * @return
+     */
+    String token() {
+        skipBlanks();
+        int start = pos;
+        while (pos < len && !isBlank(buf[pos]) && buf[pos] != ':') {
+            pos++;
+        }
+        return new String(buf, start, pos - start, StandardCharsets.US_ASCII);
+    }
+
+    void skipToken() {
+        skipBlanks();
+        while (pos < len && !isBlank(buf[pos])) {
+            pos++;
+        }
+    }
+
+    /**
+     * 跳过空白后读取一个非负整数
+     *
+     * @return 不是数字时返回-1
+     */
+    long nextLong() {
+        skipBlanks();
+        if (pos >= len || buf[pos] < '0' || buf[pos] > '9') {
+            return -1;
+        }
+        long value = 0;
+        while (pos < len && buf[pos] >= '0' && buf[pos] <= '9') {
+            value = value * 10 + (buf[pos++] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * 跳过空白后读取一个非负小数，如loadavg中的0.52
+     *
+     * @return 不是数字时返回-1
+     */
+    double nextDouble() {
+        long integer = nextLong();
+        if (integer < 0) {
+            return -1;
+        }
+        double value = integer;
+        if (pos < len && buf[pos] == '.') {
+            pos++;
+            double scale = 0.1;
+            while (pos < len && buf[pos] >= '0' && buf[pos] <= '9') {
+                value += (buf[pos++] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+    private void skipBlanks() {
+        while (pos < len && (buf[pos] == ' ' || buf[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\n';
+    }
+}
@@ -0,0 +1,405 @@
+package com.justdebugit.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从Linux的/proc读取系统指标:各核及总的cpu使用率(%)、load average、内存、各磁盘io、各网卡流量及包数、
+ * 上下文切换，以及本进程的线程数、rss、打开的文件数及上下文切换。名称自带分组及tag，应使用
+ * {@code registry.registerAll(new ProcMetricSet())} 注册，写入 &lt;app&gt;_os_cpu_gauge(tag core)、
+ * &lt;app&gt;_os_disk_gauge(tag device)、&lt;app&gt;_os_net_gauge(tag iface) 等measurement
+ * <p>
+ * 所有gauge共用一份快照:第一个被读取的gauge读取全部文件，maxAge内的其他gauge直接返回快照中的值。
+ * 文件保持打开，每次读入复用的缓冲并原地解析，除列出/proc/self/fd外不创建对象。
+ * 磁盘(不含loop、ram及分区)、网卡(不含lo)及cpu核数在构造时确定;计数类的值为累计值，由查询时求导
+ * <p>
+ * root可指向包含stat、meminfo等文件的目录，用于测试或读取容器挂载的宿主机/proc;文件不存在的部分不产生metric
+ *
+ * @author justdebugit
+ */
+public class ProcMetricSet implements MetricSet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcMetricSet.class);
+
+    private static final String[] CPU_FIELDS = {"user", "nice", "system", "idle", "iowait", "irq", "softirq", "steal"};
+    private static final String[] KERNEL_KEYS = {"ctxt", "processes", "procs_running", "procs_blocked"};
+    private static final String[] MEM_KEYS = {"MemTotal", "MemFree", "MemAvailable", "Buffers", "Cached", "SwapTotal", "SwapFree"};
+    private static final String[] MEM_FIELDS = {"total", "free", "available", "buffers", "cached", "swap_total", "swap_free"};
+    // diskstats中设备名之后的列:读次数、读扇区、读耗时、写次数、写扇区、写耗时、io耗时
+    private static final int[] DISK_COLUMNS = {0, 2, 3, 4, 6, 7, 9};
+    private static final String[] DISK_FIELDS = {"reads", "read_bytes", "read_ms", "writes", "write_bytes", "write_ms", "io_ms"};
+    private static final int SECTOR_BYTES = 512;
+    // net/dev中网卡名之后的列
+    private static final int[] NET_COLUMNS = {0, 1, 2, 3, 8, 9, 10, 11};
+    private static final String[] NET_FIELDS = {"rx_bytes", "rx_packets", "rx_errs", "rx_drop", "tx_bytes", "tx_packets", "tx_errs", "tx_drop"};
+    private static final String[] STATUS_KEYS = {"Threads", "VmRSS", "voluntary_ctxt_switches", "nonvoluntary_ctxt_switches"};
+    private static final String[] STATUS_FIELDS = {"threads", "rss", "voluntary_ctxt_switches", "nonvoluntary_ctxt_switches"};
+    private static final byte[] KB = " kB".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COLON = {':'};
+
+    private final long maxAgeNanos;
+    private final ProcFile stat;
+    private final ProcFile loadavg;
+    private final ProcFile meminfo;
+    private final ProcFile diskstats;
+    private final ProcFile netdev;
+    private final ProcFile status;
+    private final File fdDir;
+    private final boolean hasFdDir;
+
+    private final byte[][] cpuNames;//cpu、cpu0、cpu1...
+    private final long[][] cpuTicks;
+    private final long[][] lastCpuTicks;
+    private final double[][] cpuPercent;
+    private final byte[][] kernelKeys = encode(KERNEL_KEYS);
+    private final long[] kernel = new long[KERNEL_KEYS.length];
+    private final double[] load = new double[3];
+    private final byte[][] memKeys = encode(MEM_KEYS);
+    private final long[] mem = new long[MEM_KEYS.length];
+    private final byte[][] diskNames;
+    private final long[][] disk;
+    private final byte[][] netNames;
+    private final long[][] net;
+    private final byte[][] statusKeys = encode(STATUS_KEYS);
+    private final long[] process = new long[STATUS_KEYS.length + 1];//最后一个为打开的文件数
+    private final long[] column = new long[16];
+    private long refreshedAt;
+    private boolean refreshed;
+
+    public ProcMetricSet() {
+        this("/proc");
+    }
+
+    /**
+     * @param root /proc或测试用的目录
+     */
+    public ProcMetricSet(String root) {
+        this(root, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param root   /proc或测试用的目录
+     * @param maxAge 快照的有效期，应小于上报周期
+     * @param unit
+     */
+    public ProcMetricSet(String root, long maxAge, TimeUnit unit) {
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.stat = new ProcFile(new File(root, "stat"));
+        this.loadavg = new ProcFile(new File(root, "loadavg"));
+        this.meminfo = new ProcFile(new File(root, "meminfo"));
+        this.diskstats = new ProcFile(new File(root, "diskstats"));
+        this.netdev = new ProcFile(new File(root, "net/dev"));
+        this.status = new ProcFile(new File(root, "self/status"));
+        this.fdDir = new File(root, "self/fd");
+        this.hasFdDir = fdDir.isDirectory();
+
+        this.cpuNames = encode(discover(stat, 0, "cpu", false));
+        this.cpuTicks = new long[cpuNames.length][CPU_FIELDS.length];
+        this.lastCpuTicks = new long[cpuNames.length][CPU_FIELDS.length];
+        this.cpuPercent = new double[cpuNames.length][CPU_FIELDS.length];
+        for (double[] percent : cpuPercent) {
+            Arrays.fill(percent, Double.NaN);
+        }
+        this.diskNames = encode(wholeDisks(discover(diskstats, 2, null, false)));
+        this.disk = new long[diskNames.length][DISK_FIELDS.length];
+        this.netNames = encode(interfaces(discover(netdev, 0, null, true)));
+        this.net = new long[netNames.length][NET_FIELDS.length];
+        Arrays.fill(kernel, -1);
+        Arrays.fill(load, -1);
+        Arrays.fill(mem, -1);
+        Arrays.fill(process, -1);
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> gauges = new HashMap<>();
+        for (int i = 0; i < cpuNames.length; i++) {
+            String core = i == 0 ? "all" : new String(cpuNames[i], 3, cpuNames[i].length - 3, StandardCharsets.US_ASCII);
+            for (int j = 0; j < CPU_FIELDS.length; j++) {
+                gauges.put("[os.cpu|core=" + core + "]." + CPU_FIELDS[j], doubleGauge(cpuPercent[i], j));
+            }
+        }
+        if (stat.exists()) {
+            for (int i = 0; i < KERNEL_KEYS.length; i++) {
+                gauges.put("[os.kernel]." + KERNEL_KEYS[i], longGauge(kernel, i));
+            }
+        }
+        if (loadavg.exists()) {
+            gauges.put("[os.load].load1", doubleGauge(load, 0));
+            gauges.put("[os.load].load5", doubleGauge(load, 1));
+            gauges.put("[os.load].load15", doubleGauge(load, 2));
+        }
+        if (meminfo.exists()) {
+            for (int i = 0; i < MEM_FIELDS.length; i++) {
+                gauges.put("[os.mem]." + MEM_FIELDS[i], longGauge(mem, i));
+            }
+            gauges.put("[os.mem].used", new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    synchronized (ProcMetricSet.this) {
+                        refreshIfStale();
+                        return mem[0] < 0 || mem[2] < 0 ? null : mem[0] - mem[2];
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < diskNames.length; i++) {
+            String prefix = "[os.disk|device=" + new String(diskNames[i], StandardCharsets.US_ASCII) + "].";
+            for (int j = 0; j < DISK_FIELDS.length; j++) {
+                gauges.put(prefix + DISK_FIELDS[j], longGauge(disk[i], j));
+            }
+        }
+        for (int i = 0; i < netNames.length; i++) {
+            String prefix = "[os.net|iface=" + new String(netNames[i], StandardCharsets.US_ASCII) + "].";
+            for (int j = 0; j < NET_FIELDS.length; j++) {
+                gauges.put(prefix + NET_FIELDS[j], longGauge(net[i], j));
+            }
+        }
+        if (status.exists()) {
+            for (int i = 0; i < STATUS_FIELDS.length; i++) {
+                gauges.put("[os.process]." + STATUS_FIELDS[i], longGauge(process, i));
+            }
+        }
+        if (hasFdDir) {
+            gauges.put("[os.process].fds", longGauge(process, STATUS_KEYS.length));
+        }
+        return gauges;
+    }
+
+    private Gauge<Long> longGauge(final long[] values, final int index) {
+        return new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                synchronized (ProcMetricSet.this) {
+                    refreshIfStale();
+                    return values[index] < 0 ? null : values[index];
+                }
+            }
+        };
+    }
+
+    private Gauge<Double> doubleGauge(final double[] values, final int index) {
+        return new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                synchronized (ProcMetricSet.this) {
+                    refreshIfStale();
+                    return Double.isNaN(values[index]) || values[index] < 0 ? null : values[index];
+                }
+            }
+        };
+    }
+
+    /**
+     * 快照过期时重新读取全部文件，调用方持有锁
+     */
+    private void refreshIfStale() {
+        long now = System.nanoTime();
+        if (refreshed && now - refreshedAt < maxAgeNanos) {
+            return;
+        }
+        refreshed = true;
+        refreshedAt = now;
+        if (cpuNames.length > 0 && read(stat)) {
+            parseStat();
+        }
+        if (loadavg.exists() && read(loadavg)) {
+            for (int i = 0; i < load.length; i++) {
+                load[i] = loadavg.nextDouble();
+            }
+        }
+        if (meminfo.exists() && read(meminfo)) {
+            parseKeyValues(meminfo, memKeys, mem, true);
+        }
+        if (diskNames.length > 0 && read(diskstats)) {
+            parseDiskstats();
+        }
+        if (netNames.length > 0 && read(netdev)) {
+            parseNetdev();
+        }
+        if (status.exists() && read(status)) {
+            parseKeyValues(status, statusKeys, process, false);
+        }
+        if (hasFdDir) {
+            String[] fds = fdDir.list();
+            process[STATUS_KEYS.length] = fds == null ? -1 : fds.length;
+        }
+    }
+
+    private boolean read(ProcFile file) {
+        try {
+            file.read();
+            return file.hasMore();
+        } catch (IOException e) {
+            LOGGER.debug("read {} failed", file, e);
+            return false;
+        }
+    }
+
+    private void parseStat() {
+        do {
+            int cpu = stat.matchToken(cpuNames);
+            if (cpu >= 0) {
+                long[] ticks = cpuTicks[cpu];
+                long[] last = lastCpuTicks[cpu];
+                long total = 0;
+                for (int i = 0; i < ticks.length; i++) {
+                    last[i] = ticks[i];
+                    ticks[i] = Math.max(0, stat.nextLong());//较老的内核没有steal列
+                    total += ticks[i] - last[i];
+                }
+                for (int i = 0; i < ticks.length; i++) {
+                    cpuPercent[cpu][i] = total <= 0 || last[3] == 0 ? Double.NaN : (ticks[i] - last[i]) * 100.0 / total;
+                }
+                continue;
+            }
+            parseKeyValue(stat, kernelKeys, kernel, false);
+        } while (stat.nextLine());
+    }
+
+    private void parseDiskstats() {
+        do {
+            diskstats.skipToken();//major
+            diskstats.skipToken();//minor
+            int index = diskstats.matchToken(diskNames);
+            if (index < 0) {
+                continue;
+            }
+            readColumns(diskstats, DISK_COLUMNS[DISK_COLUMNS.length - 1] + 1);
+            for (int i = 0; i < DISK_COLUMNS.length; i++) {
+                long value = column[DISK_COLUMNS[i]];
+                disk[index][i] = value >= 0 && (i == 1 || i == 4) ? value * SECTOR_BYTES : value;
+            }
+        } while (diskstats.nextLine());
+    }
+
+    private void parseNetdev() {
+        do {
+            int index = netdev.matchToken(netNames);
+            if (index < 0) {
+                continue;
+            }
+            readColumns(netdev, NET_COLUMNS[NET_COLUMNS.length - 1] + 1);
+            for (int i = 0; i < NET_COLUMNS.length; i++) {
+                net[index][i] = column[NET_COLUMNS[i]];
+            }
+        } while (netdev.nextLine());
+    }
+
+    private void readColumns(ProcFile file, int count) {
+        for (int i = 0; i < count; i++) {
+            column[i] = file.nextLong();
+        }
+    }
+
+    private void parseKeyValues(ProcFile file, byte[][] keys, long[] values, boolean kiloBytes) {
+        do {
+            parseKeyValue(file, keys, values, kiloBytes);
+        } while (file.nextLine());
+    }
+
+    /**
+     * 解析 "key value" 或 "key: value kB" 形式的一行
+     */
+    private static void parseKeyValue(ProcFile file, byte[][] keys, long[] values, boolean kiloBytes) {
+        int index = file.matchToken(keys);
+        if (index < 0) {
+            return;
+        }
+        long value = file.nextLong();
+        values[index] = value >= 0 && (kiloBytes || file.skip(KB)) ? value * 1024 : value;
+    }
+
+    /**
+     * 初始化时读取各行的名称:stat中的cpu行，diskstats中第三列的设备名，net/dev中冒号前的网卡名
+     *
+     * @param skipColumns 名称前的列数
+     * @param prefix      名称的前缀，为null时不限
+     * @param colon       名称后是否须有':'
+     */
+    private static List<String> discover(ProcFile file, int skipColumns, String prefix, boolean colon) {
+        List<String> names = new ArrayList<>();
+        if (!file.exists()) {
+            return names;
+        }
+        try {
+            file.read();
+        } catch (IOException e) {
+            LOGGER.debug("read {} failed", file, e);
+            return names;
+        }
+        while (file.hasMore()) {
+            for (int i = 0; i < skipColumns; i++) {
+                file.skipToken();
+            }
+            String name = file.token();
+            if (!name.isEmpty() && (prefix == null || name.startsWith(prefix)) && (!colon || file.skip(COLON))) {
+                names.add(name);
+            }
+            file.nextLine();
+        }
+        return names;
+    }
+
+    /**
+     * 去掉loop、ram设备及分区，分区的流量已计入所在磁盘。按内核的分区命名判断:磁盘名以字母结尾时分区名直接加序号(sda1)，
+     * 以数字结尾时加p及序号(nvme0n1p1、md1p1)，dm-10、md10这类名称是独立的设备而不是dm-1、md1的分区
+     */
+    private static List<String> wholeDisks(List<String> devices) {
+        List<String> disks = new ArrayList<>();
+        for (String device : devices) {
+            if (device.startsWith("loop") || device.startsWith("ram")) {
+                continue;
+            }
+            boolean partition = false;
+            for (String other : devices) {
+                if (device.length() > other.length() && device.startsWith(other)) {
+                    String suffix = device.substring(other.length());
+                    boolean endsWithDigit = Character.isDigit(other.charAt(other.length() - 1));
+                    if (suffix.matches(endsWithDigit ? "p\\d+" : "\\d+")) {
+                        partition = true;
+                        break;
+                    }
+                }
+            }
+            if (!partition) {
+                disks.add(device);
+            }
+        }
+        return disks;
+    }
+
+    private static List<String> interfaces(List<String> names) {
+        List<String> interfaces = new ArrayList<>();
+        for (String name : names) {
+            if (!"lo".equals(name)) {
+                interfaces.add(name);
+            }
+        }
+        return interfaces;
+    }
+
+    private static byte[][] encode(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return encoded;
+    }
+
+    private static byte[][] encode(List<String> names) {
+        return encode(names.toArray(new String[names.size()]));
+    }
+}
@@ -0,0 +1,33 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * 标记读取开销大的gauge(做I/O、加锁等)，如:
+ * <pre>
+ * registry.register("[db].pool.active", new AsyncGauge&lt;&gt;(gauge));
+ * </pre>
+ * 开启 {@link InfluxdbReporter.Builder#asyncGauges} 的reporter在后台线程中刷新其值，
+ * report时只读取缓存的值，并写出值的时效(age字段，毫秒)。其他reporter或直接调用 {@link #getValue()} 时仍同步读取
+ *
+ * @author justdebugit
+ */
+public class AsyncGauge<T> implements Gauge<T> {
+    private final Gauge<T> source;
+
+    public AsyncGauge(Gauge<T> source) {
+        if (source == null) {
+            throw new IllegalArgumentException("source can not be null");
+        }
+        this.source = source;
+    }
+
+    public Gauge<T> getSource() {
+        return source;
+    }
+
+    @Override
+    public T getValue() {
+        return source.getValue();
+    }
+}
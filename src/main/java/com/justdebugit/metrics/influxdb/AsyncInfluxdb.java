@@ -0,0 +1,418 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步写influxdb，report线程只负责把编码好的batch(上限与 {@link InfluxdbHttp} 相同)放入有界队列，由独立的发送线程调用 {@link InfluxdbHttp} 发送，
+ * influxdb变慢或者不可用时不会阻塞report
+ * <p>
+ * 队列满时的处理见 {@link OverflowPolicy}，队列长度及丢弃数可以通过注册本对象(它本身是一个 {@link MetricSet}，
+ * 同时以http.为前缀包含 {@link InfluxdbHttp} 的metric)查看，如:
+ * <pre>
+ * registry.register("[influxdb.async]", asyncInfluxdb);
+ * </pre>
+ * 线程安全:每个写入线程填充自己的batch(只在flush时与其他线程竞争)，写满或flush时放入共享的队列，一个实例可被多个 {@link InfluxdbReporter} 共用
+ *
+ * @author justdebugit
+ */
+public class AsyncInfluxdb implements Influxdb, MetricSet, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncInfluxdb.class);
+
+    /**
+     * 队列满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /**
+         * 丢弃队列中最早的batch
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃当前要放入的batch
+         */
+        DROP_NEWEST,
+        /**
+         * 阻塞等待，超时后丢弃当前要放入的batch
+         */
+        BLOCK
+    }
+
+    private final InfluxdbHttp delegate;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final BlockingQueue<LineProtocolWriter> queue;
+    private final ConcurrentLinkedQueue<LineProtocolWriter> freeBatches = new ConcurrentLinkedQueue<>();//复用发送完的batch
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final int maxFreeBatches;//空闲batch最多保留的个数，超出的直接丢给gc
+    private final Thread[] senders;
+    private volatile boolean running = true;
+
+    private final Counter sentBatches = new Counter();
+    private final Counter failedBatches = new Counter();
+    private final Counter droppedBatches = new Counter();
+    private final Counter droppedPoints = new Counter();
+
+    private final Set<WriterBatch> batches = Collections.newSetFromMap(
+            new ConcurrentHashMap<WriterBatch, Boolean>());//所有写入线程的batch，flush及close时全部放入队列
+    private final ThreadLocal<WriterBatch> currentBatches = new ThreadLocal<WriterBatch>() {
+        @Override
+        protected WriterBatch initialValue() {
+            WriterBatch batch = new WriterBatch();
+            batches.add(batch);
+            return batch;
+        }
+    };//每个写入线程正在填充的batch，flush时换成空闲batch
+
+    private AsyncInfluxdb(Builder builder) {
+        this.delegate = builder.delegate;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutMillis = builder.blockTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+        this.maxFreeBatches = builder.senderThreads * 2;//稳态下每个发送线程归还一个，写入线程flush时取走一个
+        this.senders = new Thread[builder.senderThreads];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Thread(new Sender(), "influxdb-async-sender-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+    }
+
+    public static Builder newBuilder(InfluxdbHttp delegate) {
+        return new Builder(delegate);
+    }
+
+    public static class Builder {
+        private final InfluxdbHttp delegate;
+        private int queueCapacity;
+        private int senderThreads;
+        private OverflowPolicy overflowPolicy;
+        private long blockTimeoutMillis;
+
+        private Builder(InfluxdbHttp delegate) {
+            this.delegate = delegate;
+            this.queueCapacity = 1024;
+            this.senderThreads = 1;
+            this.overflowPolicy = OverflowPolicy.DROP_OLDEST;
+            this.blockTimeoutMillis = 1000;
+        }
+
+        /**
+         * 队列最多缓存的batch数
+         *
+         * @param queueCapacity
+         * @return
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * 发送线程数
+         *
+         * @param senderThreads
+         * @return
+         */
+        public Builder senderThreads(int senderThreads) {
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        /**
+         * 队列满时的处理策略，默认 {@link OverflowPolicy#DROP_OLDEST}
+         *
+         * @param overflowPolicy
+         * @return
+         */
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * {@link OverflowPolicy#BLOCK} 时最长等待时间
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder blockTimeout(long timeout, TimeUnit unit) {
+            this.blockTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public AsyncInfluxdb build() {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate influxdb can not be null");
+            }
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity must be positive");
+            }
+            if (senderThreads <= 0) {
+                throw new IllegalArgumentException("senderThreads must be positive");
+            }
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("overflowPolicy can not be null");
+            }
+            return new AsyncInfluxdb(this);
+        }
+    }
+
+    @Override
+    public void writeData(SinglePoint singlePoint) throws InfluxdbException {
+        WriterBatch writer = currentBatches.get();
+        synchronized (writer) {
+            if (singlePoint.writeTo(writer.points) && delegate.isBatchFull(writer.points)) {
+                flush(writer);
+            }
+        }
+    }
+
+    @Override
+    public void write(LineProtocolWriter lines) throws InfluxdbException {
+        if (lines.lines() == 0) {
+            return;
+        }
+        WriterBatch writer = currentBatches.get();
+        synchronized (writer) {
+            if (!delegate.fitsInBatch(writer.points, lines)) {
+                flush(writer);
+            }
+            writer.points.append(lines);
+            if (delegate.isBatchFull(writer.points)) {
+                flush(writer);
+            }
+        }
+    }
+
+    @Override
+    public TimeUnit getPrecision() {
+        return delegate.getPrecision();
+    }
+
+    /**
+     * 把所有线程的batch放入发送队列，不等待发送结果;写入线程已结束的batch放入队列后不再保留
+     *
+     * @throws InfluxdbException
+     */
+    @Override
+    public void flush() throws InfluxdbException {
+        InfluxdbException error = null;
+        for (WriterBatch writer : batches) {
+            try {
+                synchronized (writer) {
+                    flush(writer);
+                }
+            } catch (InfluxdbException e) {
+                if (error == null) {
+                    error = e;
+                }
+            } finally {
+                if (!writer.owner.isAlive()) {
+                    batches.remove(writer);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void flush(WriterBatch writer) throws InfluxdbException {
+        if (writer.points.lines() == 0) {
+            return;
+        }
+        LineProtocolWriter batch = writer.points;
+        writer.points = nextFreeBatch();
+        enqueue(batch);
+    }
+
+    private void enqueue(LineProtocolWriter batch) throws InfluxdbException {
+        if (!running) {
+            drop(batch);
+            throw new InfluxdbException("AsyncInfluxdb has been closed");
+        }
+        offer(batch);
+        // 检查running之后close可能已经开始，发送线程退出后放入的batch不会再被取走;仍在队列中则取回计为丢弃
+        if (!running && queue.remove(batch)) {
+            drop(batch);
+            throw new InfluxdbException("AsyncInfluxdb has been closed");
+        }
+    }
+
+    private void offer(LineProtocolWriter batch) {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(batch)) {
+                    LineProtocolWriter oldest = queue.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(batch)) {
+                    drop(batch);
+                }
+                break;
+            case BLOCK:
+                try {
+                    if (!queue.offer(batch, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        drop(batch);
+                    }
+                } catch (InterruptedException e) {
+                    drop(batch);
+                    Thread.currentThread().interrupt();
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown overflow policy: " + overflowPolicy);
+        }
+    }
+
+    private void drop(LineProtocolWriter batch) {
+        droppedBatches.inc();
+        droppedPoints.inc(batch.lines());
+        recycle(batch);
+    }
+
+    private LineProtocolWriter nextFreeBatch() {
+        LineProtocolWriter batch = freeBatches.poll();
+        if (batch == null) {
+            return new LineProtocolWriter();
+        }
+        freeCount.decrementAndGet();
+        return batch;
+    }
+
+    /**
+     * 归还发送完的batch;缓冲超过batch字节上限两倍(倍增扩容的余量)的batch由单次写入的大块数据撑大，
+     * 以及空闲batch已达上限时直接丢弃，队列积压消退后不长期占用内存
+     */
+    private void recycle(LineProtocolWriter batch) {
+        if (batch.buffer().length > delegate.getMaxBatchBytes() * 2L) {
+            return;
+        }
+        if (freeCount.incrementAndGet() > maxFreeBatches) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        batch.reset();
+        freeBatches.offer(batch);
+    }
+
+    /**
+     * 当前排队等待发送的batch数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedBatches() {
+        return droppedBatches.getCount();
+    }
+
+    public long getDroppedPoints() {
+        return droppedPoints.getCount();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("queue.depth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.size();
+            }
+        });
+        metrics.put("sent.batches", sentBatches);
+        metrics.put("failed.batches", failedBatches);
+        metrics.put("dropped.batches", droppedBatches);
+        metrics.put("dropped.points", droppedPoints);
+        for (Map.Entry<String, Metric> entry : delegate.getMetrics().entrySet()) {
+            metrics.put("http." + entry.getKey(), entry.getValue());
+        }
+        return metrics;
+    }
+
+    /**
+     * 先把所有线程尚未写满的batch放入队列，再停止发送线程，队列中剩余的batch会在 {@code blockTimeout} 内尽量发送完
+     */
+    @Override
+    public void close() {
+        for (WriterBatch writer : batches) {
+            try {
+                synchronized (writer) {
+                    flush(writer);
+                }
+            } catch (InfluxdbException e) {
+                logger.warn("Flush batch on close failed", e);
+            }
+        }
+        batches.clear();
+        running = false;
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join(blockTimeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private class WriterBatch {
+        private final Thread owner = Thread.currentThread();
+        private LineProtocolWriter points = new LineProtocolWriter();
+    }
+
+    private class Sender implements Runnable {
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                LineProtocolWriter batch;
+                try {
+                    batch = running ? queue.take() : queue.poll();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (batch == null) {
+                    break;
+                }
+                try {
+                    delegate.send(batch);
+                    sentBatches.inc();
+                } catch (InfluxdbException e) {
+                    failedBatches.inc();
+                    logger.warn("Async write to influxdb failed,{} points lost", batch.lines(), e);
+                } catch (Exception e) {
+                    failedBatches.inc();
+                    logger.error(e.getMessage(), e);
+                } finally {
+                    recycle(batch);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * {@link InfluxdbHttp} 使用的熔断器
+ * <p>
+ * 连续 failureThreshold 次发送失败(网络错误或5xx)后打开，打开期间的请求直接失败，不再建立连接等待超时;
+ * openMillis 后进入半开状态，只放行一个探测请求，成功则关闭，失败则重新打开
+ *
+ * @author justdebugit
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+
+        final int code;//用于gauge输出
+
+        State(int code) {
+            this.code = code;
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Counter opened = new Counter();
+    private final Counter rejected = new Counter();
+
+    private State state = State.CLOSED;
+    private long stateSince = System.currentTimeMillis();
+    private int consecutiveFailures;
+    private boolean probing;//半开状态下是否已有探测请求
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 请求前调用
+     *
+     * @return 放行时返回当前状态(HALF_OPEN表示本次是探测请求)，拒绝时返回null
+     */
+    synchronized State tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return State.CLOSED;
+            case OPEN:
+                if (System.currentTimeMillis() - stateSince < openMillis) {
+                    rejected.inc();
+                    return null;
+                }
+                transition(State.HALF_OPEN);
+                probing = true;
+                return State.HALF_OPEN;
+            default:
+                if (probing) {
+                    rejected.inc();
+                    return null;
+                }
+                probing = true;
+                return State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * influxdb给出了应答(包括4xx)
+     */
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probing = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    /**
+     * 网络错误或5xx
+     */
+    synchronized void onFailure() {
+        probing = false;
+        if (state == State.OPEN) {
+            return;
+        }
+        if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+            transition(State.OPEN);
+            opened.inc();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * 处于当前状态的时长
+     *
+     * @return
+     */
+    synchronized long getStateMillis() {
+        return System.currentTimeMillis() - stateSince;
+    }
+
+    Counter getOpened() {
+        return opened;
+    }
+
+    Counter getRejected() {
+        return rejected;
+    }
+
+    private void transition(State to) {
+        state = to;
+        stateSince = System.currentTimeMillis();
+        consecutiveFailures = 0;
+    }
+}
@@ -0,0 +1,227 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在后台线程中刷新开销大的gauge({@link AsyncGauge} 及filter选中的gauge)，report时以缓存值代替原gauge，不阻塞report线程。
+ * 已开启汇总采样的gauge由采样线程读取，不再异步刷新
+ * <p>
+ * 每个周期开始时提交上次已完成的gauge重新读取，仍在排队或读取中的不重复提交;
+ * 单次读取从开始执行算起超过时间预算(无论是仍未返回还是返回较晚)计一次超时，排队等待的时间不计入。
+ * 卡住的gauge各占用一个刷新线程，排在其后的gauge要等到有空闲线程才读取，期间写出的age随之变大;
+ * 所有刷新线程都被卡住时不再提交新的读取，这些gauge及仍在排队的gauge每个周期各计一次gauges.skipped
+ *
+ * @author justdebugit
+ */
+class GaugeRefresher implements MetricSet {
+    private static final Logger logger = LoggerFactory.getLogger(GaugeRefresher.class);
+
+    private final MetricFilter filter;
+    private final long budgetNanos;
+    private final int threads;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, RefreshedGauge> gauges = new ConcurrentHashMap<>();
+    private final Counter timeouts = new Counter();
+    private final Counter skipped = new Counter();//刷新线程全部卡住时本周期读不到的gauge
+
+    GaugeRefresher(MetricFilter filter, long budgetNanos, int threads) {
+        this.filter = filter;
+        this.budgetNanos = budgetNanos;
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "influxdb-gauge-refresher-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 提交本周期的刷新，并在本次上报中以缓存值代替异步gauge;已从registry移除的gauge不再刷新。只在report线程中调用
+     *
+     * @param gauges 本周期上报的gauge
+     * @return
+     */
+    SortedMap<String, Gauge<?>> refresh(SortedMap<String, Gauge<?>> gauges) {
+        SortedMap<String, Gauge<?>> cached = null;
+        long now = System.nanoTime();
+        boolean saturated = stuck(now) >= threads;//新提交的读取只会排在卡住的gauge之后
+        for (Map.Entry<String, Gauge<?>> entry : gauges.entrySet()) {
+            Gauge<?> gauge = entry.getValue();
+            if (gauge instanceof GaugeRollup
+                    || !(gauge instanceof AsyncGauge) && (filter == null || !filter.matches(entry.getKey(), gauge))) {
+                continue;
+            }
+            RefreshedGauge refreshed = this.gauges.get(entry.getKey());
+            if (refreshed == null || refreshed.source != gauge) {
+                refreshed = new RefreshedGauge(entry.getKey(), gauge);
+                this.gauges.put(entry.getKey(), refreshed);
+            }
+            refreshed.submit(now, saturated);
+            if (cached == null) {
+                cached = new TreeMap<>(gauges);
+            }
+            cached.put(entry.getKey(), refreshed);
+        }
+        for (Iterator<RefreshedGauge> it = this.gauges.values().iterator(); it.hasNext(); ) {
+            RefreshedGauge refreshed = it.next();
+            if (gauges.get(refreshed.name) != refreshed.source) {
+                it.remove();
+            }
+        }
+        return cached == null ? gauges : cached;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return 已开始读取且超过时间预算仍未返回的gauge数，即被卡住的刷新线程数
+     */
+    private int stuck(long now) {
+        int stuck = 0;
+        for (RefreshedGauge refreshed : gauges.values()) {
+            if (refreshed.isStuck(now)) {
+                stuck++;
+            }
+        }
+        return stuck;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("gauges.timeouts", timeouts);
+        metrics.put("gauges.skipped", skipped);
+        metrics.put("gauges.async", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return gauges.size();
+            }
+        });
+        metrics.put("gauges.stuck", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return stuck(System.nanoTime());
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * 异步gauge的缓存，report时写出value及age
+     */
+    final class RefreshedGauge implements Gauge<Object>, Runnable {
+        private final String name;
+        private final Gauge<?> source;
+        private volatile Object value;
+        private volatile long refreshedAt;//最近一次读取成功的时间，nanoTime
+        private volatile long startedAt;//本次读取开始执行的时间，started为true时有效
+        private volatile boolean loaded;
+        private volatile boolean running;//已提交，排队或读取中
+        private volatile boolean started;//已开始读取
+        private final AtomicBoolean timedOut = new AtomicBoolean();//本次读取已计过超时
+
+        private RefreshedGauge(String name, Gauge<?> source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        private void submit(long now, boolean saturated) {
+            if (running) {
+                if (isStuck(now) && timedOut.compareAndSet(false, true)) {
+                    timeouts.inc();
+                    logger.warn("Gauge {} has not returned within the time budget,last value is {}ms old", name,
+                            loaded ? getAgeMillis() : -1);
+                } else if (!started && saturated) {
+                    skipped.inc();//排在卡住的gauge之后，本周期读不到
+                }
+                return;
+            }
+            if (saturated) {
+                skipped.inc();
+                return;
+            }
+            timedOut.set(false);
+            started = false;
+            running = true;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                running = false;
+            }
+        }
+
+        @Override
+        public void run() {
+            startedAt = System.nanoTime();
+            started = true;
+            try {
+                Object v = source.getValue();
+                long end = System.nanoTime();
+                value = v;
+                refreshedAt = end;
+                loaded = true;
+                // 仍在读取时report线程可能已计过
+                if (end - startedAt > budgetNanos && timedOut.compareAndSet(false, true)) {
+                    timeouts.inc();
+                }
+            } catch (Exception e) {
+                logger.debug("Refresh gauge {} failed", name, e);
+            } finally {
+                started = false;
+                running = false;
+            }
+        }
+
+        private boolean isStuck(long now) {
+            return started && now - startedAt > budgetNanos;
+        }
+
+        /**
+         * @return 是否已读取成功过，第一次刷新完成前没有可写出的值
+         */
+        boolean isLoaded() {
+            return loaded;
+        }
+
+        /**
+         * @return 缓存值距离读取时的毫秒数
+         */
+        long getAgeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - refreshedAt);
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * 一个gauge在上报周期内的采样汇总，由 {@link InfluxdbReporter} 的采样线程按较短的间隔调用 {@link #sample()}，
+ * 上报时 {@link #endWindow()} 结束当前周期，写出周期内的min、max、mean及最后一次采样值
+ * <p>
+ * 只累加原始类型，非数值的gauge不会被采样
+ *
+ * @author justdebugit
+ */
+class GaugeRollup implements Gauge<Object> {
+    private final Gauge<?> source;
+
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+    private double last;
+
+    private long windowCount;//上一个完整周期，只在report线程中读取
+    private double windowMin;
+    private double windowMax;
+    private double windowMean;
+    private double windowLast;
+
+    GaugeRollup(Gauge<?> source) {
+        this.source = source;
+    }
+
+    Gauge<?> getSource() {
+        return source;
+    }
+
+    /**
+     * 读取一次gauge的值
+     */
+    void sample() {
+        Object value = source.getValue();
+        if (!(value instanceof Number)) {
+            return;
+        }
+        double v = ((Number) value).doubleValue();
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            return;
+        }
+        synchronized (this) {
+            if (count == 0) {
+                min = max = v;
+            } else if (v < min) {
+                min = v;
+            } else if (v > max) {
+                max = v;
+            }
+            sum += v;
+            last = v;
+            count++;
+        }
+    }
+
+    /**
+     * 结束当前周期，保存汇总值并清零
+     */
+    synchronized void endWindow() {
+        windowCount = count;
+        windowMin = min;
+        windowMax = max;
+        windowMean = count == 0 ? 0 : sum / count;
+        windowLast = last;
+        count = 0;
+        sum = 0;
+    }
+
+    long getWindowCount() {
+        return windowCount;
+    }
+
+    double getWindowMin() {
+        return windowMin;
+    }
+
+    double getWindowMax() {
+        return windowMax;
+    }
+
+    double getWindowMean() {
+        return windowMean;
+    }
+
+    double getWindowLast() {
+        return windowLast;
+    }
+
+    @Override
+    public Object getValue() {
+        return source.getValue();
+    }
+}
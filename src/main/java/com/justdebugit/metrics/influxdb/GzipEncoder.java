@@ -0,0 +1,110 @@
+package com.justdebugit.metrics.influxdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 把数据以gzip格式边压缩边写出，{@link Deflater}、{@link CRC32} 及输出缓冲在多次请求间复用
+ * <p>
+ * 非线程安全，由 {@link InfluxdbHttp} 池化使用，不再使用时需调用 {@link #end()} 释放native内存
+ *
+ * @author justdebugit
+ */
+class GzipEncoder {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] buf = new byte[8192];
+
+    private OutputStream out;
+    private long written;
+    private long inputBytes;
+
+    /**
+     * 压缩并写出data
+     *
+     * @param data
+     * @param off
+     * @param len
+     * @param out
+     * @return 写出的字节数
+     * @throws IOException
+     */
+    long encode(byte[] data, int off, int len, OutputStream out) throws IOException {
+        start(out);
+        update(data, off, len);
+        return finish();
+    }
+
+    /**
+     * 开始一个gzip流，写出header，之后可多次调用 {@link #update(byte[], int, int)}
+     *
+     * @param out
+     * @throws IOException
+     */
+    void start(OutputStream out) throws IOException {
+        deflater.reset();
+        crc.reset();
+        this.out = out;
+        this.inputBytes = 0;
+        out.write(HEADER);
+        this.written = HEADER.length;
+    }
+
+    /**
+     * 压缩一段数据，输出缓冲满时写出，data在返回后即可复用
+     *
+     * @param data
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    void update(byte[] data, int off, int len) throws IOException {
+        crc.update(data, off, len);
+        inputBytes += len;
+        deflater.setInput(data, off, len);
+        while (!deflater.needsInput()) {
+            drain();
+        }
+    }
+
+    /**
+     * 结束gzip流，写出剩余数据及trailer
+     *
+     * @return 整个流写出的字节数
+     * @throws IOException
+     */
+    long finish() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain();
+        }
+        writeIntLE((int) crc.getValue(), 0);
+        writeIntLE((int) inputBytes, 4);
+        out.write(buf, 0, 8);
+        out = null;
+        return written + 8;
+    }
+
+    private void drain() throws IOException {
+        int n = deflater.deflate(buf, 0, buf.length);
+        if (n > 0) {
+            out.write(buf, 0, n);
+            written += n;
+        }
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    private void writeIntLE(int v, int pos) {
+        buf[pos] = (byte) v;
+        buf[pos + 1] = (byte) (v >>> 8);
+        buf[pos + 2] = (byte) (v >>> 16);
+        buf[pos + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,337 @@
+package com.justdebugit.metrics.influxdb;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * 到influxdb的一个HTTP/1.1持久连接，由 {@link HttpConnectionPool} 管理
+ * <p>
+ * 一次只能处理一个请求，非线程安全
+ *
+ * @author justdebugit
+ */
+class HttpConnection implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_ERROR_BODY = 1024;//错误响应最多保留的字符数
+    private static final int MAX_LINE = 8192;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[BUFFER_SIZE];//响应按块读入，readPos到readLimit之间为未解析的数据
+    private int readPos;
+    private int readLimit;
+    private byte[] lineBuffer = new byte[256];
+    private final StringBuilder errorBody = new StringBuilder();
+    private final ChunkedOutputStream chunkedBody = new ChunkedOutputStream();
+    private boolean keepAlive = true;
+    private int requests;
+    private long lastUsed;
+
+    HttpConnection(String host, int port, int connectTimeout, int readTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(readTimeout);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            this.in = socket.getInputStream();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.socket = socket;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * 以Content-Length方式发送一个请求，body直接从batch缓冲写出
+     *
+     * @param head    请求行及公共header，不包含Content-Length及结尾空行
+     * @param body
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    void writeRequest(byte[] head, byte[] body, int off, int len) throws IOException {
+        requests++;
+        out.write(head);
+        writeAscii("Content-Length: ");
+        writeAscii(Integer.toString(len));
+        writeAscii("\r\n\r\n");
+        out.write(body, off, len);
+        out.flush();
+    }
+
+    /**
+     * 以chunked方式发送一个请求，调用方写完body后需关闭返回的输出流，关闭时只写出结束chunk，不会关闭连接
+     *
+     * @param head 请求行及公共header，不包含Transfer-Encoding及结尾空行
+     * @return body输出流
+     * @throws IOException
+     */
+    OutputStream writeChunkedRequest(byte[] head) throws IOException {
+        requests++;
+        out.write(head);
+        writeAscii("Transfer-Encoding: chunked\r\n\r\n");
+        return chunkedBody;
+    }
+
+    /**
+     * 读取响应，响应体只在出错时保留(见 {@link #errorBody()})，其余直接丢弃
+     *
+     * @return http状态码
+     * @throws IOException
+     */
+    int readResponse() throws IOException {
+        errorBody.setLength(0);
+        int status;
+        long contentLength;
+        boolean chunked;
+        boolean persistent;
+        do {
+            String statusLine = readLine();
+            status = parseStatus(statusLine);
+            // HTTP/1.0默认在响应后关闭连接，除非显式声明keep-alive;HTTP/1.1默认保持连接
+            persistent = !statusLine.startsWith("HTTP/1.0");
+            contentLength = -1;
+            chunked = false;
+            String line;
+            while ((line = readLine()).length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    if ("close".equalsIgnoreCase(value)) {
+                        persistent = false;
+                    } else if ("keep-alive".equalsIgnoreCase(value)) {
+                        persistent = true;
+                    }
+                }
+            }
+        } while (status == 100);
+        if (!persistent) {
+            keepAlive = false;
+        }
+
+        boolean keepBody = status >= 400;
+        if (status == 204 || status == 304) {
+            // no body
+        } else if (chunked) {
+            long chunkSize;
+            while ((chunkSize = parseChunkSize(readLine())) > 0) {
+                readBody(chunkSize, keepBody);
+                readLine();
+            }
+            while (readLine().length() > 0) {
+                // trailers
+            }
+        } else if (contentLength >= 0) {
+            readBody(contentLength, keepBody);
+        } else {
+            readBody(Long.MAX_VALUE, keepBody);//读到连接关闭
+            keepAlive = false;
+        }
+        lastUsed = System.currentTimeMillis();
+        return status;
+    }
+
+    /**
+     * 最近一次错误响应的内容
+     *
+     * @return
+     */
+    String errorBody() {
+        return errorBody.toString();
+    }
+
+    /**
+     * 是否已经发送过请求(即从池中复用的连接)
+     *
+     * @return
+     */
+    boolean isReused() {
+        return requests > 1;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive && !socket.isClosed();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    @Override
+    public void close() {
+        keepAlive = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void readBody(long length, boolean keep) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            if (readPos == readLimit && !fill()) {
+                if (length == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("unexpected end of http response body");
+            }
+            int n = (int) Math.min(remaining, readLimit - readPos);
+            if (keep) {
+                for (int i = readPos, end = readPos + Math.min(n, MAX_ERROR_BODY - errorBody.length()); i < end; i++) {
+                    errorBody.append((char) (readBuffer[i] & 0xff));
+                }
+            }
+            readPos += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * 读取一行，不含结尾的\r\n，在缓冲中查找换行，只有跨越缓冲边界的行才复制到lineBuffer
+     */
+    private String readLine() throws IOException {
+        int len = 0;
+        while (true) {
+            if (readPos == readLimit && !fill()) {
+                throw new EOFException("connection closed by influxdb");
+            }
+            int start = readPos;
+            int end = start;
+            while (end < readLimit && readBuffer[end] != '\n') {
+                end++;
+            }
+            boolean found = end < readLimit;
+            readPos = found ? end + 1 : end;
+            if (found && len == 0) {
+                return newLine(readBuffer, start, end);
+            }
+            int n = end - start;
+            if (len + n > MAX_LINE) {
+                throw new IOException("http response line too long");
+            }
+            if (len + n > lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length << 1, len + n));
+            }
+            System.arraycopy(readBuffer, start, lineBuffer, len, n);
+            len += n;
+            if (found) {
+                return newLine(lineBuffer, 0, len);
+            }
+        }
+    }
+
+    private static String newLine(byte[] buf, int start, int end) {
+        if (end > start && buf[end - 1] == '\r') {
+            end--;
+        }
+        return new String(buf, start, end - start, LineProtocolWriter.UTF_8);
+    }
+
+    /**
+     * 缓冲已读完时从socket读入下一块
+     *
+     * @return 是否读到了数据，连接已关闭时返回false
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(readBuffer, 0, readBuffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        readPos = 0;
+        readLimit = n;
+        return true;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    /**
+     * 每次write输出一个chunk，close时输出结束chunk
+     */
+    private class ChunkedOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+        private final byte[] sizeLine = new byte[10];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            int pos = sizeLine.length;
+            sizeLine[--pos] = '\n';
+            sizeLine[--pos] = '\r';
+            int v = len;
+            do {
+                sizeLine[--pos] = (byte) Character.forDigit(v & 0xf, 16);
+                v >>>= 4;
+            } while (v != 0);
+            out.write(sizeLine, pos, sizeLine.length - pos);
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeAscii("0\r\n\r\n");
+            out.flush();
+        }
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 204 No Content
+        int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+            throw new IOException("invalid http status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid http status line: " + statusLine);
+        }
+    }
+
+    private static long parseChunkSize(String line) throws IOException {
+        int end = line.indexOf(';');
+        try {
+            return Long.parseLong((end < 0 ? line : line.substring(0, end)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.justdebugit.metrics.influxdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * 持久连接池，最多保留 {@code maxIdle} 个空闲连接，空闲超过 {@code idleTimeoutMillis} 的连接会被关闭
+ * <p>
+ * 并发请求超过池大小时会临时新建连接，用完后若池已满则直接关闭
+ *
+ * @author justdebugit
+ */
+class HttpConnectionPool implements Closeable {
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final ArrayDeque<HttpConnection> idle;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private boolean closed;
+
+    HttpConnectionPool(String host, int port, int maxIdle, long idleTimeoutMillis, int connectTimeout, int readTimeout) {
+        this.host = host;
+        this.port = port;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.idle = new ArrayDeque<>(maxIdle);
+    }
+
+    /**
+     * 优先取最近使用过的空闲连接，没有则新建
+     *
+     * @return
+     * @throws IOException
+     */
+    HttpConnection acquire() throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("connection pool has been closed");
+            }
+            HttpConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                if (conn.isKeepAlive() && now - conn.getLastUsed() < idleTimeoutMillis) {
+                    return conn;
+                }
+                conn.close();
+            }
+        }
+        return connect();
+    }
+
+    /**
+     * 新建一个连接，不经过空闲池
+     *
+     * @return
+     * @throws IOException
+     */
+    HttpConnection connect() throws IOException {
+        return new HttpConnection(host, port, connectTimeout, readTimeout);
+    }
+
+    /**
+     * 归还连接，不可复用的连接直接关闭
+     *
+     * @param conn
+     */
+    void release(HttpConnection conn) {
+        if (conn.isKeepAlive()) {
+            synchronized (this) {
+                if (!closed && idle.size() < maxIdle) {
+                    idle.offerFirst(conn);
+                    return;
+                }
+            }
+        }
+        conn.close();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            HttpConnection conn;
+            while ((conn = idle.pollFirst()) != null) {
+                conn.close();
+            }
+        }
+    }
+}
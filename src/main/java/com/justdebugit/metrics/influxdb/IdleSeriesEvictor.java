@@ -0,0 +1,122 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 清理长时间没有更新的带tag metric(名称经 {@link InfluxdbMetrics#makeMetricName} 生成，含'|')
+ * <p>
+ * 只跟踪counter、histogram、meter、timer:每个周期比较一次count，不在metric的更新路径上增加开销;
+ * count超过ttl未变化的metric在本周期照常写出(最后一次上报)，周期发送成功后从registry移除，
+ * 之后同名metric被再次使用时由registry重新创建。gauge需要显式register，不会按需产生，由注册者自行移除
+ * <p>
+ * 只在report线程中调用
+ *
+ * @author justdebugit
+ */
+class IdleSeriesEvictor implements MetricSet {
+    private final MetricRegistry registry;
+    private final long ttlMillis;
+    private final Map<String, Activity> activities = new HashMap<>();
+    private final List<String> expired = new ArrayList<>();//本周期过期，发送成功后移除
+    private final Counter evicted = new Counter();
+    private volatile int tracked;
+    private long tick;
+
+    IdleSeriesEvictor(MetricRegistry registry, long ttlMillis) {
+        this.registry = registry;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 更新本周期各metric的活动时间，记下已过期的metric;不在本周期中的metric(已被移除或过滤)不再跟踪
+     *
+     * @param now     当前时间，毫秒
+     * @param metrics 本周期上报的各类metric
+     */
+    @SafeVarargs
+    final void track(long now, Map<String, ? extends Metric>... metrics) {
+        tick++;
+        expired.clear();
+        for (Map<String, ? extends Metric> map : metrics) {
+            for (Map.Entry<String, ? extends Metric> entry : map.entrySet()) {
+                if (!(entry.getValue() instanceof Counting) || entry.getKey().indexOf('|') < 0) {
+                    continue;
+                }
+                long count = ((Counting) entry.getValue()).getCount();
+                Activity activity = activities.get(entry.getKey());
+                if (activity == null || activity.metric != entry.getValue()) {
+                    activity = new Activity(entry.getValue());
+                    activity.count = count;
+                    activity.lastActive = now;
+                    activities.put(entry.getKey(), activity);
+                } else if (activity.count != count) {
+                    activity.count = count;
+                    activity.lastActive = now;
+                } else if (now - activity.lastActive >= ttlMillis) {
+                    expired.add(entry.getKey());
+                }
+                activity.tick = tick;
+            }
+        }
+        for (Iterator<Activity> it = activities.values().iterator(); it.hasNext(); ) {
+            if (it.next().tick != tick) {
+                it.remove();
+            }
+        }
+        tracked = activities.size();
+    }
+
+    /**
+     * 本周期的数据已写出，移除过期的metric;发送失败时不调用，下个周期重新判断
+     */
+    void evict() {
+        if (expired.isEmpty()) {
+            return;
+        }
+        Map<String, Metric> current = registry.getMetrics();//getMetrics每次复制整个registry，只取一次
+        for (String name : expired) {
+            Activity activity = activities.remove(name);
+            // 期间可能已被其他线程移除或替换
+            if (activity != null && current.get(name) == activity.metric && registry.remove(name)) {
+                evicted.inc();
+            }
+        }
+        expired.clear();
+        tracked = activities.size();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("series.evicted", evicted);
+        metrics.put("series.tracked", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return tracked;
+            }
+        });
+        return metrics;
+    }
+
+    private static final class Activity {
+        private final Metric metric;
+        private long count;
+        private long lastActive;
+        private long tick;//最近一次出现的周期
+
+        private Activity(Metric metric) {
+            this.metric = metric;
+        }
+    }
+}
@@ -3,6 +3,7 @@
  */
 package com.justdebugit.metrics.influxdb;
 
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author justdebugit
@@ -16,6 +17,14 @@ public interface Influxdb {
      */
     public void writeData(SinglePoint singlePoint) throws InfluxdbException;
 
+    /**
+     * 写入writer中所有已完成的行，调用方随后可以复用writer
+     *
+     * @param lines 已按line protocol编码的数据
+     * @throws InfluxdbException
+     */
+    public void write(LineProtocolWriter lines) throws InfluxdbException;
+
     /**
      * 写完调用flush清理缓冲
      *
@@ -23,4 +32,11 @@ public interface Influxdb {
      */
     public void flush() throws InfluxdbException;
 
+    /**
+     * influxdb按此精度解析写入的时间戳，reporter构建时检查与写出的时间戳精度一致
+     *
+     * @return
+     */
+    public TimeUnit getPrecision();
+
 }
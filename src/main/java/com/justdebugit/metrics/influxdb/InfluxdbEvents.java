@@ -0,0 +1,590 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 直接写入原始point(事件)，如每个任务的完成、每笔交易的耗时，各自带有时间戳和tag，不经过metric聚合
+ * <p>
+ * 应用线程可并发调用，point写入预先分配好的环形缓冲槽位(多生产者、单消费者，无锁)，
+ * 由一个后台线程按batch写入配置的 {@link Influxdb}。写入过程不创建对象:
+ * <pre>
+ * events.event("trade").tag("symbol", symbol).field("latency_us", latency).field("qty", qty).publish();
+ * </pre>
+ * {@link #event(String)} 取得的 {@link Event} 只能由当前线程使用，必须调用 {@link Event#publish()} 或在出错时调用
+ * {@link Event#cancel()}，之后不能再访问;tag、field的值只保存引用，发布后不应再修改(String本身不可变)。
+ * 领取后超过abandonTimeout(见 {@link Builder#abandonTimeout(long, TimeUnit)})仍未发布的槽位视为生产者已异常退出，
+ * 消费线程跳过该槽位，不会因此停止写出之后的事件。缓冲满时的处理见 {@link OverflowPolicy}
+ * <p>
+ * tag按key排序后写出，与 {@link InfluxdbReporter} 相同
+ * <p>
+ * 本身是一个 {@link MetricSet}，可查看写入、丢弃的事件数及缓冲中的事件数
+ *
+ * @author justdebugit
+ */
+public class InfluxdbEvents implements MetricSet, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(InfluxdbEvents.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);//没有事件时消费线程的等待时间
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);//BLOCK时生产者的等待时间
+
+    /**
+     * 缓冲满时的处理策略
+     */
+    public enum OverflowPolicy {
+        /**
+         * 丢弃当前要写入的事件
+         */
+        DROP_NEWEST,
+        /**
+         * 等待消费线程腾出槽位，超时后丢弃当前要写入的事件
+         */
+        BLOCK
+    }
+
+    private final Influxdb influxdb;
+    private final Event[] slots;
+    private final int mask;
+    private final AtomicLongArray sequences;//每个槽位已发布的序号，或取消的序号的 cancelled(sequence)
+    private final AtomicLong claimed = new AtomicLong();//下一个可领取的序号
+    private final AtomicLong consumed = new AtomicLong();//消费线程下一个要读取的序号
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final long abandonTimeoutNanos;
+    private final TimeUnit precision;
+    private final LineProtocolWriter batch;//只在消费线程中使用
+    private final Event discarded;//缓冲满时返回，所有操作都被忽略
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    private final Counter published = new Counter();
+    private final Counter dropped = new Counter();
+    private final Counter written = new Counter();
+    private final Counter writeFailures = new Counter();
+    private final Counter cancelled = new Counter();
+    private final Counter abandoned = new Counter();//超时未发布而被跳过
+
+    private InfluxdbEvents(Builder builder) {
+        this.influxdb = builder.influxdb;
+        int capacity = Integer.highestOneBit(builder.capacity - 1) << 1;
+        this.slots = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event(builder.maxTags, builder.maxFields);
+        }
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, -1);
+        }
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutNanos = builder.blockTimeoutNanos;
+        this.batchSize = builder.batchSize;
+        this.flushIntervalNanos = builder.flushIntervalNanos;
+        this.abandonTimeoutNanos = builder.abandonTimeoutNanos;
+        this.precision = builder.precision;
+        this.batch = new LineProtocolWriter(builder.compactPayload);
+        this.discarded = new Event(0, 0);
+        this.consumer = new Thread(new Consumer(), "influxdb-events-writer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public static Builder newBuilder(Influxdb influxdb) {
+        return new Builder(influxdb);
+    }
+
+    public static class Builder {
+        private final Influxdb influxdb;
+        private int capacity;
+        private int maxTags;
+        private int maxFields;
+        private OverflowPolicy overflowPolicy;
+        private long blockTimeoutNanos;
+        private int batchSize;
+        private long flushIntervalNanos;
+        private long abandonTimeoutNanos;
+        private TimeUnit precision;
+        private boolean compactPayload;
+
+        private Builder(Influxdb influxdb) {
+            this.influxdb = influxdb;
+            this.capacity = 65536;
+            this.maxTags = 8;
+            this.maxFields = 8;
+            this.overflowPolicy = OverflowPolicy.DROP_NEWEST;
+            this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            this.batchSize = 5000;
+            this.flushIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+            this.abandonTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+            this.precision = TimeUnit.NANOSECONDS;
+        }
+
+        /**
+         * 缓冲的槽位数，向上取整为2的幂，默认65536
+         *
+         * @param capacity
+         * @return
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * 每个事件最多的tag数，超出的tag被忽略，默认8
+         *
+         * @param maxTags
+         * @return
+         */
+        public Builder maxTags(int maxTags) {
+            this.maxTags = maxTags;
+            return this;
+        }
+
+        /**
+         * 每个事件最多的field数，超出的field被忽略，默认8
+         *
+         * @param maxFields
+         * @return
+         */
+        public Builder maxFields(int maxFields) {
+            this.maxFields = maxFields;
+            return this;
+        }
+
+        /**
+         * 缓冲满时的处理策略，默认 {@link OverflowPolicy#DROP_NEWEST}
+         *
+         * @param overflowPolicy
+         * @return
+         */
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * {@link OverflowPolicy#BLOCK} 时最长等待时间，默认10毫秒
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder blockTimeout(long timeout, TimeUnit unit) {
+            this.blockTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * 攒够多少个事件写入一次influxdb，默认5000
+         *
+         * @param batchSize
+         * @return
+         */
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * 事件较少时最长多久写入一次，默认1秒
+         *
+         * @param interval
+         * @param unit
+         * @return
+         */
+        public Builder flushInterval(long interval, TimeUnit unit) {
+            this.flushIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * 槽位领取后最长多久未发布即被跳过，默认1秒;跳过后该槽位会被重新领取，生产者持有Event的时间不能超过该值
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder abandonTimeout(long timeout, TimeUnit unit) {
+            this.abandonTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * 与 {@link InfluxdbReporter.Builder#compactPayload(TimeUnit)} 相同的精简格式
+         *
+         * @param precision
+         * @return
+         */
+        public Builder compactPayload(TimeUnit precision) {
+            InfluxdbHttp.precisionParam(precision);
+            this.precision = precision;
+            this.compactPayload = true;
+            return this;
+        }
+
+        public InfluxdbEvents build() {
+            if (influxdb == null) {
+                throw new IllegalArgumentException("influxdb can not be null");
+            }
+            if (capacity < 2 || capacity > (1 << 30)) {
+                throw new IllegalArgumentException("capacity must be between 2 and 2^30");
+            }
+            if (maxTags < 0 || maxFields <= 0 || batchSize <= 0 || flushIntervalNanos <= 0 || abandonTimeoutNanos <= 0) {
+                throw new IllegalArgumentException("invalid maxTags,maxFields,batchSize,flushInterval or abandonTimeout");
+            }
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("overflowPolicy can not be null");
+            }
+            InfluxdbReporter.checkPrecision(influxdb, precision);
+            return new InfluxdbEvents(this);
+        }
+    }
+
+    /**
+     * 以当前时间开始一个事件
+     *
+     * @param measurement
+     * @return 缓冲满而被丢弃时返回的Event忽略所有操作
+     */
+    public Event event(String measurement) {
+        return event(measurement, System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 以指定时间开始一个事件
+     *
+     * @param measurement
+     * @param timestamp
+     * @param unit        timestamp的单位
+     * @return 缓冲满而被丢弃时返回的Event忽略所有操作
+     */
+    public Event event(String measurement, long timestamp, TimeUnit unit) {
+        long sequence = claim();
+        if (sequence < 0) {
+            dropped.inc();
+            return discarded;
+        }
+        int index = (int) sequence & mask;
+        Event event = slots[index];
+        event.start(sequence, sequences.get(index), measurement, timestamp, unit);
+        return event;
+    }
+
+    /**
+     * 取消的序号在槽位中的标记，与已发布的序号(非负)及初始值-1都不相同
+     */
+    private static long cancelled(long sequence) {
+        return -2 - sequence;
+    }
+
+    /**
+     * 领取一个序号，缓冲满且不能等待时返回-1
+     */
+    private long claim() {
+        long deadline = 0;
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed.get() >= slots.length) {
+                if (!running || overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return -1;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + blockTimeoutNanos;
+                } else if (now - deadline >= 0) {
+                    return -1;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * 缓冲中尚未写出的事件数
+     *
+     * @return
+     */
+    public int getPending() {
+        return (int) Math.max(0, claimed.get() - consumed.get());
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("published", published);
+        metrics.put("dropped", dropped);
+        metrics.put("written", written);
+        metrics.put("write.failures", writeFailures);
+        metrics.put("cancelled", cancelled);
+        metrics.put("abandoned", abandoned);
+        metrics.put("pending", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getPending();
+            }
+        });
+        return metrics;
+    }
+
+    /**
+     * 停止接收事件，写出缓冲中剩余的事件
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 缓冲中的一个槽位，由领取它的线程填充，{@link #publish()} 之后交给消费线程
+     */
+    public final class Event {
+        private final String[] tagKeys;
+        private final String[] tagValues;
+        private final String[] fieldKeys;
+        private final long[] longValues;
+        private final double[] doubleValues;
+        private final boolean[] integral;
+        private long sequence = -1;
+        private long previous;//领取时槽位中上一轮的状态，发布时据此确认槽位未被跳过
+        private String measurement;
+        private long timestamp;
+        private TimeUnit unit;
+        private int tags;
+        private int fields;
+
+        private Event(int maxTags, int maxFields) {
+            this.tagKeys = new String[maxTags];
+            this.tagValues = new String[maxTags];
+            this.fieldKeys = new String[maxFields];
+            this.longValues = new long[maxFields];
+            this.doubleValues = new double[maxFields];
+            this.integral = new boolean[maxFields];
+        }
+
+        private void start(long sequence, long previous, String measurement, long timestamp, TimeUnit unit) {
+            this.sequence = sequence;
+            this.previous = previous;
+            this.measurement = measurement;
+            this.timestamp = timestamp;
+            this.unit = unit;
+            this.tags = 0;
+            this.fields = 0;
+        }
+
+        public Event tag(String key, String value) {
+            if (tags < tagKeys.length) {
+                tagKeys[tags] = key;
+                tagValues[tags++] = value;
+            }
+            return this;
+        }
+
+        public Event field(String key, long value) {
+            if (fields < fieldKeys.length) {
+                fieldKeys[fields] = key;
+                longValues[fields] = value;
+                integral[fields++] = true;
+            }
+            return this;
+        }
+
+        public Event field(String key, double value) {
+            if (fields < fieldKeys.length) {
+                fieldKeys[fields] = key;
+                doubleValues[fields] = value;
+                integral[fields++] = false;
+            }
+            return this;
+        }
+
+        /**
+         * 发布事件，之后不能再访问本对象
+         */
+        public void publish() {
+            if (this == discarded) {
+                return;
+            }
+            // 超过abandonTimeout后槽位已被消费线程跳过，事件不再写出
+            if (sequences.compareAndSet((int) sequence & mask, previous, sequence)) {
+                published.inc();
+            }
+        }
+
+        /**
+         * 放弃已领取的槽位，如填充事件时出错，之后不能再访问本对象
+         */
+        public void cancel() {
+            if (this == discarded) {
+                return;
+            }
+            if (sequences.compareAndSet((int) sequence & mask, previous, cancelled(sequence))) {
+                cancelled.inc();
+            }
+        }
+
+        /**
+         * 消费线程写出后清除引用，避免持有应用对象
+         */
+        private void writeTo(LineProtocolWriter writer) {
+            writer.measurement(measurement);
+            sortTags();
+            for (int i = 0; i < tags; i++) {
+                writer.tag(tagKeys[i], tagValues[i]);
+                tagKeys[i] = tagValues[i] = null;
+            }
+            for (int i = 0; i < fields; i++) {
+                if (integral[i]) {
+                    writer.field(fieldKeys[i], longValues[i]);
+                } else {
+                    writer.field(fieldKeys[i], doubleValues[i]);
+                }
+                fieldKeys[i] = null;
+            }
+            writer.endLine(precision.convert(timestamp, unit));
+            measurement = null;
+        }
+
+        /**
+         * 按key插入排序，tag数很少
+         */
+        private void sortTags() {
+            for (int i = 1; i < tags; i++) {
+                String key = tagKeys[i];
+                String value = tagValues[i];
+                int j = i - 1;
+                while (j >= 0 && tagKeys[j].compareTo(key) > 0) {
+                    tagKeys[j + 1] = tagKeys[j];
+                    tagValues[j + 1] = tagValues[j];
+                    j--;
+                }
+                tagKeys[j + 1] = key;
+                tagValues[j + 1] = value;
+            }
+        }
+
+        /**
+         * 消费线程跳过已取消的槽位时清除引用
+         */
+        private void clear() {
+            for (int i = 0; i < tags; i++) {
+                tagKeys[i] = tagValues[i] = null;
+            }
+            for (int i = 0; i < fields; i++) {
+                fieldKeys[i] = null;
+            }
+            measurement = null;
+        }
+    }
+
+    /**
+     * 按序号顺序读取已发布的槽位，攒够batchSize或超过flushInterval时写入influxdb;
+     * 已取消的槽位直接跳过，领取后超过abandonTimeout仍未发布的槽位标记为取消后跳过
+     */
+    private class Consumer implements Runnable {
+        private long lastFlush = System.nanoTime();
+        private long stalled = -1;//正在等待发布的序号
+        private long stalledSince;
+
+        @Override
+        public void run() {
+            long next = 0;
+            while (true) {
+                boolean stopping = !running;
+                int drained = 0;
+                while (true) {
+                    int index = (int) next & mask;
+                    long state = sequences.get(index);
+                    if (state == next) {
+                        slots[index].writeTo(batch);
+                    } else if (state == cancelled(next)) {
+                        slots[index].clear();
+                    } else {
+                        break;
+                    }
+                    next++;
+                    consumed.lazySet(next);
+                    drained++;
+                    if (batch.lines() >= batchSize) {
+                        break;
+                    }
+                }
+                long now = System.nanoTime();
+                if (batch.lines() >= batchSize || batch.lines() > 0
+                        && (stopping && drained == 0 || now - lastFlush >= flushIntervalNanos)) {
+                    flush(now);
+                }
+                if (drained == 0 && next != claimed.get() && abandon(next, now)) {
+                    continue;
+                }
+                if (stopping && drained == 0 && next == claimed.get()) {
+                    return;
+                }
+                if (drained == 0) {
+                    LockSupport.parkNanos(stopping ? FULL_PARK_NANOS : IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        /**
+         * 已领取的槽位长时间未发布时标记为取消，生产者之后的发布会失败
+         *
+         * @return 是否已标记
+         */
+        private boolean abandon(long sequence, long now) {
+            if (stalled != sequence) {
+                stalled = sequence;
+                stalledSince = now;
+                return false;
+            }
+            if (now - stalledSince < abandonTimeoutNanos) {
+                return false;
+            }
+            int index = (int) sequence & mask;
+            long state = sequences.get(index);
+            if (state != sequence && state != cancelled(sequence) && sequences.compareAndSet(index, state, cancelled(sequence))) {
+                abandoned.inc();
+                logger.warn("Event {} was claimed but not published in time,skipped", sequence);
+            }
+            return true;
+        }
+
+        private void flush(long now) {
+            int lines = batch.lines();
+            try {
+                influxdb.write(batch);
+                influxdb.flush();
+                written.inc(lines);
+            } catch (Exception e) {
+                writeFailures.inc();
+                logger.warn("Write events to influxdb failed,{} events lost. {}", lines, e.getMessage());
+            } finally {
+                batch.reset();
+                lastFlush = now;
+            }
+        }
+    }
+}
@@ -1,34 +1,103 @@
 package com.justdebugit.metrics.influxdb;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * http 协议向influxdb写数据
+ * <p>
+ * 使用少量HTTP/1.1持久连接，batch按point数和字节数两个上限切分，以Content-Length方式直接写出batch缓冲;
+ * 开启gzip后以chunked方式边压缩边写出
+ * <p>
+ * 开启流式发送({@link Builder#streaming(int)})后，缓冲只保留一个chunk的数据，写满即作为chunk写到已打开的请求中，
+ * flush或达到batch上限时结束请求并读取响应，每次flush占用的内存与batch大小无关;
+ * 已写出的chunk不再保留，流式发送失败时不重试也不暂存到spool
+ * <p>
+ * 配置 {@link InfluxdbSpool} 后，因网络或服务端(5xx)原因发送失败的batch会暂存到磁盘，
+ * 在之后有实时数据发送成功(influxdb恢复)时由后台线程限速重放;实时数据发送期间暂停重放
+ * <p>
+ * 网络错误或5xx时按指数退避重试，连续失败后熔断一段时间，期间直接失败，不再阻塞调用线程
+ * <p>
+ * 线程安全:每个写入线程把point写到自己的batch(只有该线程加锁，没有竞争)，发送时共享连接池，一个实例可被多个
+ * {@link InfluxdbReporter} 共用;所有线程的batch登记在一起，flush及close时全部发送，已结束的线程的batch发送后移除
+ * <p>
+ * 本身是一个 {@link MetricSet}，可查看发送的原始字节数、实际写出字节数、压缩比、请求延迟、各类状态码的次数、
+ * 重试次数及熔断状态(breaker.state: 0关闭 1半开 2打开)，如:
+ * <pre>
+ * registry.register("[influxdb.http]", influxdbHttp);
+ * </pre>
  *
  * @author justdebugit
  */
-public class InfluxdbHttp implements Influxdb {
+public class InfluxdbHttp implements Influxdb, MetricSet, Closeable {
     private static final Logger logger = LoggerFactory.getLogger(InfluxdbHttp.class);
-    private static final String URL_STR = "http://%s:%d/write?db=%s&u=%s&p=%s";
-    private static final int MAX_SIZE = 30;//防止一次网络传输大量数据，减少数据过多造成网络拥堵
+    private static final String PATH_STR = "/write?db=%s&u=%s&p=%s";
     private static final int BAD_REQUEST_CODE = 400;//influxdb返回400以上状态码都被认为是数据异常
-    private long pointsCount;
-    private final StringBuilder pointsBuffer = new StringBuilder();//缓存即将发送的point数据
-    private final String url;
+    private static final long IDLE_TIMEOUT = 30000;//空闲连接最长保留时间
+    private static final long REPLAY_IDLE_INTERVAL = 1000;//没有可重放数据或influxdb不可用时的检查间隔
+    private final Set<WriterBatch> batches = Collections.newSetFromMap(
+            new ConcurrentHashMap<WriterBatch, Boolean>());//所有写入线程的batch，flush及close时全部发送
+    private final ThreadLocal<WriterBatch> writerBatches = new ThreadLocal<WriterBatch>() {
+        @Override
+        protected WriterBatch initialValue() {
+            WriterBatch batch = new WriterBatch();
+            batches.add(batch);
+            return batch;
+        }
+    };//每个写入线程各自的batch
+    private final byte[] requestHead;
+    private final HttpConnectionPool connectionPool;
+    private final boolean gzip;
+    private final ConcurrentLinkedQueue<GzipEncoder> gzipEncoders = new ConcurrentLinkedQueue<>();//复用Deflater
+    private final Counter rawBytes = new Counter();//压缩前的body字节数
+    private final Counter wireBytes = new Counter();//实际写出的body字节数
+    private final Timer requestLatency = new Timer();//每个请求从写出到读完响应的耗时;可能被多个reporter读取，不用读取即重置的IntervalTimer
+    private final Counter status2xx = new Counter();
+    private final Counter status4xx = new Counter();
+    private final Counter status5xx = new Counter();
+    private final Counter ioErrors = new Counter();//网络错误，没有收到响应
+    private final Counter sentPoints = new Counter();
+    private final Counter droppedPoints = new Counter();//发送失败且没有暂存到spool
+    private final Counter retries = new Counter();
+    private final CircuitBreaker breaker;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final InfluxdbSpool spool;
+    private final AtomicInteger liveRequests = new AtomicInteger();//正在发送的实时batch数
+    private volatile boolean healthy;//最近一次实时发送是否成功
+    private volatile boolean closed;
 
     private String host;
     private int port;
     private String dbName;
     private String username;
     private String password;
+    private final int maxBatchPoints;
+    private final int maxBatchBytes;
+    private final TimeUnit precision;
+    private final int streamChunkBytes;//大于0时流式发送
+    private final Set<StreamingRequest> openStreams = Collections.newSetFromMap(
+            new ConcurrentHashMap<StreamingRequest, Boolean>());//所有线程中已打开的流式请求，close时断开
 
     public InfluxdbHttp(Builder builder) {
         this.host = builder.host;
@@ -36,7 +105,32 @@ public class InfluxdbHttp implements Influxdb {
         this.dbName = builder.dbName;
         this.username = builder.username;
         this.password = builder.password;
-        this.url = String.format(URL_STR, host, port, dbName, username, password);
+        this.maxBatchPoints = builder.maxBatchPoints;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.gzip = builder.gzip;
+        this.spool = builder.spool;
+        this.maxRetries = builder.maxRetries;
+        this.initialBackoffMillis = builder.initialBackoffMillis;
+        this.maxBackoffMillis = builder.maxBackoffMillis;
+        this.breaker = new CircuitBreaker(builder.breakerFailureThreshold, builder.breakerOpenMillis);
+        this.precision = builder.precision;
+        this.streamChunkBytes = builder.streamChunkBytes;
+        String path = String.format(PATH_STR, dbName, username, password);
+        if (precision != TimeUnit.NANOSECONDS) {
+            path += "&precision=" + precisionParam(precision);
+        }
+        this.requestHead = ("POST " + path + " HTTP/1.1\r\n"
+                + "Host: " + hostHeader(host, port) + "\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Connection: keep-alive\r\n"
+                + (gzip ? "Content-Encoding: gzip\r\n" : "")).getBytes(LineProtocolWriter.UTF_8);
+        this.connectionPool = new HttpConnectionPool(host, port, builder.connectionPoolSize, IDLE_TIMEOUT,
+                builder.connectTimeoutMillis, builder.readTimeoutMillis);
+        if (spool != null) {
+            Thread replayer = new Thread(new Replayer(), "influxdb-spool-replayer");
+            replayer.setDaemon(true);
+            replayer.start();
+        }
     }
 
     public static Builder newBuilder() {
@@ -50,12 +144,37 @@ public class InfluxdbHttp implements Influxdb {
         private String dbName;
         private String username;
         private String password;
+        private int maxBatchPoints;
+        private int maxBatchBytes;
+        private int connectionPoolSize;
+        private boolean gzip;
+        private InfluxdbSpool spool;
+        private int connectTimeoutMillis;
+        private int readTimeoutMillis;
+        private int maxRetries;
+        private long initialBackoffMillis;
+        private long maxBackoffMillis;
+        private int breakerFailureThreshold;
+        private long breakerOpenMillis;
+        private TimeUnit precision;
+        private int streamChunkBytes;
 
         private Builder() {
             this.port = 8086;
             this.dbName = "metrics";
             this.username = "";
             this.password = "";
+            this.maxBatchPoints = 5000;
+            this.maxBatchBytes = 1024 * 1024;
+            this.connectionPoolSize = 2;
+            this.connectTimeoutMillis = 5000;
+            this.readTimeoutMillis = 10000;
+            this.maxRetries = 2;
+            this.initialBackoffMillis = 200;
+            this.maxBackoffMillis = 5000;
+            this.breakerFailureThreshold = 3;
+            this.breakerOpenMillis = 10000;
+            this.precision = TimeUnit.NANOSECONDS;
         }
 
         /**
@@ -113,10 +232,164 @@ public class InfluxdbHttp implements Influxdb {
             return this;
         }
 
+        /**
+         * 单次请求最多包含的point数，默认5000
+         *
+         * @param maxBatchPoints
+         * @return
+         */
+        public Builder maxBatchPoints(int maxBatchPoints) {
+            this.maxBatchPoints = maxBatchPoints;
+            return this;
+        }
+
+        /**
+         * 单次请求body的最大字节数，默认1M，单个point超过该值时单独发送
+         *
+         * @param maxBatchBytes
+         * @return
+         */
+        public Builder maxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * 最多保留的空闲持久连接数，默认2
+         *
+         * @param connectionPoolSize
+         * @return
+         */
+        public Builder connectionPoolSize(int connectionPoolSize) {
+            this.connectionPoolSize = connectionPoolSize;
+            return this;
+        }
+
+        /**
+         * 是否以gzip压缩请求body，默认不压缩
+         *
+         * @param gzip
+         * @return
+         */
+        public Builder gzip(boolean gzip) {
+            this.gzip = gzip;
+            return this;
+        }
+
+        /**
+         * 发送失败的batch暂存到spool，influxdb恢复后重放，默认不暂存
+         *
+         * @param spool
+         * @return
+         */
+        public Builder spool(InfluxdbSpool spool) {
+            this.spool = spool;
+            return this;
+        }
+
+        /**
+         * 建立连接的超时时间，默认5秒
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * 等待响应的超时时间，默认10秒
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            this.readTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+            return this;
+        }
+
+        /**
+         * 网络错误或5xx时的重试，第n次重试前等待 min(initialBackoff * 2^(n-1), maxBackoff) 的50%~100%(随机抖动)，
+         * 默认最多重试2次，initialBackoff 200毫秒，maxBackoff 5秒;重试在调用flush的线程中进行
+         *
+         * @param maxRetries     为0时不重试
+         * @param initialBackoff
+         * @param maxBackoff
+         * @param unit
+         * @return
+         */
+        public Builder retry(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit) {
+            this.maxRetries = maxRetries;
+            this.initialBackoffMillis = unit.toMillis(initialBackoff);
+            this.maxBackoffMillis = unit.toMillis(maxBackoff);
+            return this;
+        }
+
+        /**
+         * 熔断:连续failureThreshold次发送失败(已包含重试)后，openTime内的发送直接失败(配置了spool时暂存)，
+         * 之后放行一个探测请求，成功后恢复。默认3次、10秒
+         *
+         * @param failureThreshold
+         * @param openTime
+         * @param unit
+         * @return
+         */
+        public Builder circuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+            this.breakerFailureThreshold = failureThreshold;
+            this.breakerOpenMillis = unit.toMillis(openTime);
+            return this;
+        }
+
+        /**
+         * 写入数据的时间戳精度，通过precision参数告知influxdb，默认纳秒。
+         * 需与 {@link InfluxdbReporter.Builder#compactPayload(TimeUnit)} 设置的精度一致
+         *
+         * @param precision NANOSECONDS、MICROSECONDS、MILLISECONDS、SECONDS、MINUTES或HOURS
+         * @return
+         */
+        public Builder precision(TimeUnit precision) {
+            precisionParam(precision);
+            this.precision = precision;
+            return this;
+        }
+
+        /**
+         * 流式发送:point写满chunkBytes即以chunk写出到当前请求，不再缓存整个batch，默认关闭。
+         * 单个请求仍受 maxBatchPoints、maxBatchBytes 限制;已写出的数据不保留，失败时不重试、不暂存到spool
+         *
+         * @param chunkBytes 每个chunk的字节数，如 64 * 1024
+         * @return
+         */
+        public Builder streaming(int chunkBytes) {
+            this.streamChunkBytes = chunkBytes;
+            return this;
+        }
+
         public InfluxdbHttp build() {
             if (host == null) {
                 throw new IllegalArgumentException("Influxdb host can not be null");
             }
+            if (maxBatchPoints <= 0 || maxBatchBytes <= 0) {
+                throw new IllegalArgumentException("maxBatchPoints and maxBatchBytes must be positive");
+            }
+            if (connectionPoolSize <= 0) {
+                throw new IllegalArgumentException("connectionPoolSize must be positive");
+            }
+            if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("connectTimeout and readTimeout must be positive");
+            }
+            if (maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+                throw new IllegalArgumentException("invalid retry settings");
+            }
+            if (breakerFailureThreshold <= 0 || breakerOpenMillis < 0) {
+                throw new IllegalArgumentException("invalid circuit breaker settings");
+            }
+            if (streamChunkBytes < 0) {
+                throw new IllegalArgumentException("streaming chunkBytes can not be negative");
+            }
             return new InfluxdbHttp(this);
         }
 
@@ -124,78 +397,444 @@ public class InfluxdbHttp implements Influxdb {
 
     @Override
     public void writeData(SinglePoint singlePoint) throws InfluxdbException {
-        if (singlePoint.getFieldMap().isEmpty()) {
+        WriterBatch writer = writerBatches.get();
+        synchronized (writer) {
+            if (!singlePoint.writeTo(writer.points)) {
+                return;
+            }
+            if (streamChunkBytes > 0) {
+                if (writer.points.size() >= streamChunkBytes) {
+                    streamBuffered(writer);
+                }
+            } else if (isBatchFull(writer.points)) {
+                flush(writer);
+            }
+        }
+    }
+
+    @Override
+    public void write(LineProtocolWriter lines) throws InfluxdbException {
+        if (lines.lines() == 0) {
             return;
         }
-        pointsBuffer.append(singlePoint.toString()).append("\n");
-        if (++pointsCount > MAX_SIZE) {
-            flush();
+        WriterBatch writer = writerBatches.get();
+        synchronized (writer) {
+            if (streamChunkBytes > 0) {
+                if (writer.points.size() + lines.size() > streamChunkBytes) {
+                    streamBuffered(writer);
+                    if (lines.size() >= streamChunkBytes) {
+                        streamChunk(writer, lines.buffer(), lines.size(), lines.lines());//大块数据直接写出，不复制到缓冲
+                        return;
+                    }
+                }
+                writer.points.append(lines);
+                return;
+            }
+            if (!fitsInBatch(writer.points, lines)) {
+                flush(writer);
+            }
+            writer.points.append(lines);
+            if (isBatchFull(writer.points)) {
+                flush(writer);
+            }
         }
     }
 
+    /**
+     * 发送所有线程的batch，全部发送完后抛出遇到的第一个异常
+     *
+     * @throws InfluxdbException
+     */
     @Override
     public void flush() throws InfluxdbException {
+        InfluxdbException error = null;
+        for (WriterBatch writer : batches) {
+            try {
+                synchronized (writer) {
+                    flush(writer);
+                }
+            } catch (InfluxdbException e) {
+                if (error == null) {
+                    error = e;
+                }
+            } finally {
+                if (!writer.owner.isAlive()) {
+                    batches.remove(writer);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void flush(WriterBatch writer) throws InfluxdbException {
+        if (streamChunkBytes > 0) {
+            streamBuffered(writer);
+            finishStream(writer);
+            return;
+        }
         try {
-            String data = pointsBuffer.toString().trim();
-            if (data == null || data.trim().length() == 0) {
-                return;
+            send(writer.points);
+        } finally {
+            writer.reset();//clear the buffer
+        }
+    }
+
+    /**
+     * 把缓冲中的数据作为一个chunk写出
+     */
+    private void streamBuffered(WriterBatch writer) throws InfluxdbException {
+        try {
+            streamChunk(writer, writer.points.buffer(), writer.points.size(), writer.points.lines());
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * 写出一个chunk，必要时先结束已达到batch上限的请求或打开新请求
+     */
+    private void streamChunk(WriterBatch writer, byte[] data, int length, int points) throws InfluxdbException {
+        if (length == 0) {
+            return;
+        }
+        if (writer.stream != null
+                && (writer.stream.points + points > maxBatchPoints || writer.stream.bytes + length > maxBatchBytes)) {
+            finishStream(writer);
+        }
+        if (writer.stream == null) {
+            CircuitBreaker.State permit = breaker.tryAcquire();
+            if (permit == null) {
+                droppedPoints.inc(points);
+                throw new InfluxdbException("Influxdb circuit breaker is open,skip sending");
             }
-            request(data.trim());
+            liveRequests.incrementAndGet();
+            writer.stream = new StreamingRequest();
+            openStreams.add(writer.stream);
+        }
+        try {
+            writer.stream.write(data, length, points);
+        } catch (IOException e) {
+            abortStream(writer, points, e);
+        }
+    }
+
+    /**
+     * 结束当前的流式请求并读取响应
+     */
+    private void finishStream(WriterBatch writer) throws InfluxdbException {
+        if (writer.stream == null) {
+            return;
+        }
+        StreamingRequest request = writer.stream;
+        int resultCode;
+        try {
+            wireBytes.inc(request.finish());
+            resultCode = request.conn.readResponse();
+        } catch (IOException e) {
+            abortStream(writer, 0, e);
+            return;
+        }
+        writer.stream = null;
+        openStreams.remove(request);
+        liveRequests.decrementAndGet();
+        requestLatency.update(System.nanoTime() - request.start, TimeUnit.NANOSECONDS);
+        countStatus(resultCode);
+        String reason = isSuccessCode(resultCode) ? null : request.conn.errorBody();
+        connectionPool.release(request.conn);
+        if (reason == null) {
+            breaker.onSuccess();
+            healthy = true;
+            sentPoints.inc(request.points);
+            return;
+        }
+        if (resultCode >= 500) {
+            breaker.onFailure();
+            healthy = false;
+        } else {
+            breaker.onSuccess();//4xx说明influxdb可用
+        }
+        droppedPoints.inc(request.points);
+        HttpStatusException e = new HttpStatusException(resultCode, reason);
+        throw new InfluxdbException(e.getMessage(), e);
+    }
+
+    /**
+     * 流式请求失败，已写出的数据无法重发，计入丢弃
+     *
+     * @param pendingPoints 本次写出失败的、尚未计入请求的point数
+     */
+    private void abortStream(WriterBatch writer, int pendingPoints, IOException e) throws InfluxdbException {
+        StreamingRequest request = writer.stream;
+        writer.stream = null;
+        openStreams.remove(request);
+        liveRequests.decrementAndGet();
+        request.abort();
+        ioErrors.inc();
+        breaker.onFailure();
+        healthy = false;
+        droppedPoints.inc(request.points + pendingPoints);
+        throw new InfluxdbException(
+                "Can not send Request to remote Influxdb,please ensure influxdb has started. " + e.getMessage(), e);
+    }
+
+    /**
+     * 发送一批数据，不修改也不持有batch，可被多个线程并发调用
+     *
+     * @param batch
+     * @throws InfluxdbException
+     */
+    void send(LineProtocolWriter batch) throws InfluxdbException {
+        if (batch.size() == 0) {
+            return;
+        }
+        CircuitBreaker.State permit = breaker.tryAcquire();
+        if (permit == null) {
+            String spooled = spool != null && spool.append(batch) ? "," + batch.lines() + " points spooled for replay" : "";
+            if (spooled.isEmpty()) {
+                droppedPoints.inc(batch.lines());
+            }
+            throw new InfluxdbException("Influxdb circuit breaker is open,skip sending" + spooled);
+        }
+        liveRequests.incrementAndGet();
+        try {
+            requestWithRetry(batch.buffer(), batch.size(), permit == CircuitBreaker.State.HALF_OPEN ? 0 : maxRetries);
+            breaker.onSuccess();
+            healthy = true;
+            sentPoints.inc(batch.lines());
             if (logger.isDebugEnabled()) {
-                logger.debug("Writing Data To Influxdb Succesfully With Data :\n {}", data);
+                logger.debug("Writing Data To Influxdb Succesfully With Data :\n {}", batch);
             }
         } catch (Exception e) {
             if (e instanceof IOException) {
+                String spooled = "";
+                if (isRetriable((IOException) e)) {
+                    breaker.onFailure();
+                    healthy = false;
+                    if (spool != null && spool.append(batch)) {
+                        spooled = "(" + batch.lines() + " points spooled for replay) ";
+                    }
+                } else {
+                    breaker.onSuccess();//4xx说明influxdb可用
+                }
+                if (spooled.isEmpty()) {
+                    droppedPoints.inc(batch.lines());
+                }
                 throw new InfluxdbException(
                         "Can not send Request to remote Influxdb,please ensure influxdb has started. "
-                                + e.getMessage(), e);
+                                + spooled + e.getMessage(), e);
             }
+            breaker.onFailure();
+            droppedPoints.inc(batch.lines());
             throw new InfluxdbException(e.getMessage(), e);
         } finally {
-            pointsCount = 0;
-            pointsBuffer.setLength(0);//clear the buffer
+            liveRequests.decrementAndGet();
         }
     }
 
+    @Override
+    public TimeUnit getPrecision() {
+        return precision;
+    }
 
-    private void request(String dataBody) throws IOException {
-        HttpURLConnection conn = null;
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        byte[] buf = new byte[4096];
-        int resultCode = -1;
-        try {
-            URL a = new URL(url);
-            conn = (HttpURLConnection) a.openConnection();
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            OutputStream wr = conn.getOutputStream();
-            wr.write(dataBody.getBytes("utf-8"));
-            wr.flush();
-            wr.close();
-            InputStream is = conn.getInputStream();
-            int ret = 0;
-            while ((ret = is.read(buf)) > 0) {
-                os.write(buf, 0, ret);
-            }
-            is.close(); // close the inputstream
-            resultCode = conn.getResponseCode();
-            if (!isSuccessCode(resultCode)) {
-                throw new IOException("influxdb returned unexpected http code:" + resultCode);
+    static String precisionParam(TimeUnit precision) {
+        switch (precision) {
+            case NANOSECONDS:
+                return "n";
+            case MICROSECONDS:
+                return "u";
+            case MILLISECONDS:
+                return "ms";
+            case SECONDS:
+                return "s";
+            case MINUTES:
+                return "m";
+            case HOURS:
+                return "h";
+            default:
+                throw new IllegalArgumentException("influxdb does not support precision " + precision);
+        }
+    }
+
+    /**
+     * batch是否已达到point数或字节数上限
+     *
+     * @param batch
+     * @return
+     */
+    boolean isBatchFull(LineProtocolWriter batch) {
+        return batch.lines() >= maxBatchPoints || batch.size() >= maxBatchBytes;
+    }
+
+    int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * 追加lines后batch是否仍在上限之内，空batch总是可以追加
+     *
+     * @param batch
+     * @param lines
+     * @return
+     */
+    boolean fitsInBatch(LineProtocolWriter batch, LineProtocolWriter lines) {
+        return fitsInBatch(batch, lines.lines(), lines.size());
+    }
+
+    boolean fitsInBatch(LineProtocolWriter batch, int points, int bytes) {
+        return batch.lines() == 0 || (batch.lines() + points <= maxBatchPoints && batch.size() + bytes <= maxBatchBytes);
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("bytes.raw", rawBytes);
+        metrics.put("bytes.wire", wireBytes);
+        metrics.put("compression.ratio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(rawBytes.getCount(), wireBytes.getCount());
             }
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            if (conn != null) {
-                InputStream es = ((HttpURLConnection) conn).getErrorStream();
-                int ret = 0;
-                while (es != null && (ret = es.read(buf)) > 0) { // read the response body
-                    os.write(buf, 0, ret);
+        });
+        metrics.put("request.latency", requestLatency);
+        metrics.put("status.2xx", status2xx);
+        metrics.put("status.4xx", status4xx);
+        metrics.put("status.5xx", status5xx);
+        metrics.put("status.io_error", ioErrors);
+        metrics.put("points.sent", sentPoints);
+        metrics.put("points.dropped", droppedPoints);
+        metrics.put("retries", retries);
+        metrics.put("breaker.state", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return breaker.getState().code;
+            }
+        });
+        metrics.put("breaker.state.ms", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return breaker.getStateMillis();
+            }
+        });
+        metrics.put("breaker.opened", breaker.getOpened());
+        metrics.put("breaker.rejected", breaker.getRejected());
+        return metrics;
+    }
+
+    /**
+     * 发送所有线程的batch，然后关闭空闲连接并停止重放(spool由调用方关闭)，其余未结束的流式请求直接断开
+     */
+    @Override
+    public void close() {
+        for (WriterBatch writer : batches) {
+            try {
+                synchronized (writer) {
+                    flush(writer);
                 }
-                if (es != null) {
-                    es.close();// close the errorstream
+            } catch (InfluxdbException e) {
+                logger.warn("Flush batch on close failed", e);
+            }
+        }
+        batches.clear();
+        closed = true;
+        for (StreamingRequest stream : openStreams) {
+            stream.abort();
+        }
+        connectionPool.close();
+        GzipEncoder encoder;
+        while ((encoder = gzipEncoders.poll()) != null) {
+            encoder.end();
+        }
+    }
+
+    /**
+     * 网络错误或5xx时按指数退避加随机抖动重试
+     */
+    private void requestWithRetry(byte[] dataBody, int length, int retryLimit) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                request(dataBody, length);
+                return;
+            } catch (IOException e) {
+                if (attempt >= retryLimit || !isRetriable(e) || closed) {
+                    throw e;
+                }
+                retries.inc();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoffMillis(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
                 }
-                msg = msg + ";Reason:" + new String(os.toByteArray(), "utf-8");
             }
-            throw new IOException(msg, e.getCause());
+        }
+    }
+
+    private long backoffMillis(int attempt) {
+        long max = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 20));
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    /**
+     * 复用的连接可能已被服务端关闭，此时换一个新连接重试一次;influxdb对相同series及时间戳的point是覆盖写，重试不会产生重复数据
+     */
+    private void request(byte[] dataBody, int length) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            HttpConnection conn = attempt == 0 ? connectionPool.acquire() : connectionPool.connect();
+            int resultCode;
+            long start = System.nanoTime();
+            try {
+                long written = length;
+                if (gzip) {
+                    written = writeGzipRequest(conn, dataBody, length);
+                } else {
+                    conn.writeRequest(requestHead, dataBody, 0, length);
+                }
+                rawBytes.inc(length);
+                wireBytes.inc(written);
+                resultCode = conn.readResponse();
+            } catch (IOException e) {
+                conn.close();
+                if (conn.isReused() && attempt == 0) {
+                    continue;
+                }
+                ioErrors.inc();
+                throw e;
+            }
+            requestLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            countStatus(resultCode);
+            String reason = isSuccessCode(resultCode) ? null : conn.errorBody();
+            connectionPool.release(conn);
+            if (reason != null) {
+                throw new HttpStatusException(resultCode, reason);
+            }
+            return;
+        }
+    }
+
+    private long writeGzipRequest(HttpConnection conn, byte[] dataBody, int length) throws IOException {
+        GzipEncoder encoder = gzipEncoders.poll();
+        if (encoder == null) {
+            encoder = new GzipEncoder();
+        }
+        try {
+            OutputStream body = conn.writeChunkedRequest(requestHead);
+            long written = encoder.encode(dataBody, 0, length, body);
+            body.close();
+            return written;
+        } finally {
+            gzipEncoders.offer(encoder);
+        }
+    }
+
+    private void countStatus(int httpCode) {
+        if (httpCode >= 500) {
+            status5xx.inc();
+        } else if (httpCode >= BAD_REQUEST_CODE) {
+            status4xx.inc();
+        } else {
+            status2xx.inc();
         }
     }
 
@@ -205,4 +844,206 @@ public class InfluxdbHttp implements Influxdb {
         }
         return false;
     }
+
+    /**
+     * 网络错误及5xx可以重试，4xx说明数据本身有问题，重试也不会成功
+     */
+    private static boolean isRetriable(IOException e) {
+        return !(e instanceof HttpStatusException) || ((HttpStatusException) e).getStatusCode() >= 500;
+    }
+
+    /**
+     * Host头的值，IPv6地址按RFC 7230加方括号，如 [::1]:8086
+     *
+     * @param host
+     * @param port
+     * @return
+     */
+    static String hostHeader(String host, int port) {
+        return (host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host) + ":" + port;
+    }
+
+    /**
+     * influxdb返回了4xx，即数据本身被拒绝(如格式错误、字段类型冲突)，influxdb是可用的
+     *
+     * @param e send抛出的异常
+     * @return
+     */
+    static boolean isRejected(InfluxdbException e) {
+        return e.getCause() instanceof HttpStatusException && !isRetriable((HttpStatusException) e.getCause());
+    }
+
+    /**
+     * influxdb返回了表示失败的状态码
+     */
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = -3181570839302436587L;
+
+        private final int statusCode;
+
+        HttpStatusException(int statusCode, String reason) {
+            super("influxdb returned unexpected http code:" + statusCode + ";Reason:" + reason);
+            this.statusCode = statusCode;
+        }
+
+        int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /**
+     * 一个写入线程的batch，由该线程及flush、close加锁访问
+     */
+    private class WriterBatch {
+        private final Thread owner = Thread.currentThread();
+        private LineProtocolWriter points = newPoints();//缓存即将发送的point数据，流式发送时只缓存一个chunk
+        private StreamingRequest stream;//流式发送中已打开的请求
+
+        /**
+         * 清空缓冲，单次写入的大块数据使缓冲超过上限的两倍时换成新的缓冲，不长期占用
+         */
+        private void reset() {
+            int limit = streamChunkBytes > 0 ? streamChunkBytes : maxBatchBytes;
+            if (points.buffer().length > limit * 2L) {
+                points = newPoints();
+            } else {
+                points.reset();
+            }
+        }
+
+        private LineProtocolWriter newPoints() {
+            return streamChunkBytes > 0 ? new LineProtocolWriter(streamChunkBytes) : new LineProtocolWriter();
+        }
+    }
+
+    /**
+     * 流式发送中已打开的一个chunked请求
+     */
+    private class StreamingRequest {
+        private final long start = System.nanoTime();
+        private HttpConnection conn;
+        private OutputStream body;
+        private GzipEncoder encoder;
+        private int points;
+        private long bytes;
+        private long written;
+
+        /**
+         * 写出一个chunk;复用的连接在写第一个chunk时失败，说明已被服务端关闭，换新连接重写一次
+         */
+        void write(byte[] data, int length, int points) throws IOException {
+            if (conn == null) {
+                conn = connectionPool.acquire();
+                try {
+                    open(data, length);
+                } catch (IOException e) {
+                    if (!conn.isReused()) {
+                        throw e;
+                    }
+                    conn.close();
+                    conn = connectionPool.connect();
+                    open(data, length);
+                }
+            } else {
+                writeBody(data, length);
+            }
+            this.points += points;
+            this.bytes += length;
+            InfluxdbHttp.this.rawBytes.inc(length);
+        }
+
+        private void open(byte[] data, int length) throws IOException {
+            written = 0;
+            body = conn.writeChunkedRequest(requestHead);
+            if (gzip) {
+                if (encoder == null) {
+                    encoder = gzipEncoders.poll();
+                    if (encoder == null) {
+                        encoder = new GzipEncoder();
+                    }
+                }
+                encoder.start(body);
+            }
+            writeBody(data, length);
+        }
+
+        private void writeBody(byte[] data, int length) throws IOException {
+            if (gzip) {
+                encoder.update(data, 0, length);
+            } else {
+                body.write(data, 0, length);
+                written += length;
+            }
+        }
+
+        /**
+         * 写出结束chunk
+         *
+         * @return 整个请求写出的body字节数
+         */
+        long finish() throws IOException {
+            if (gzip) {
+                written = encoder.finish();
+                releaseEncoder();
+            }
+            body.close();
+            return written;
+        }
+
+        void abort() {
+            if (conn != null) {
+                conn.close();
+            }
+            releaseEncoder();
+        }
+
+        private void releaseEncoder() {
+            if (encoder != null) {
+                gzipEncoders.offer(encoder);
+                encoder = null;
+            }
+        }
+    }
+
+    /**
+     * influxdb恢复后按时间顺序重放spool中的batch，每发送一个batch按 replayBytesPerSecond 休眠相应时间
+     */
+    private class Replayer implements Runnable {
+        @Override
+        public void run() {
+            LineProtocolWriter batch = new LineProtocolWriter();
+            while (!closed) {
+                long sleepMillis = REPLAY_IDLE_INTERVAL;
+                long position = -1;
+                try {
+                    if (healthy && liveRequests.get() == 0) {
+                        batch.reset();
+                        position = spool.peek(batch);
+                        if (position >= 0) {
+                            request(batch.buffer(), batch.size());
+                            spool.remove(position, true);
+                            sleepMillis = Math.max(1, batch.size() * 1000L / spool.getReplayBytesPerSecond());
+                        }
+                    } else if (healthy) {
+                        sleepMillis = 10;
+                    }
+                } catch (IOException e) {
+                    if (isRetriable(e)) {
+                        healthy = false;
+                        logger.debug("Replay spooled data failed,will retry later", e);
+                    } else {
+                        logger.warn("Spooled data rejected by influxdb,discard it. {}", e.getMessage());
+                        spool.remove(position, false);
+                    }
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
 }
@@ -2,13 +2,29 @@ package com.justdebugit.metrics.influxdb;
 
 import com.codahale.metrics.*;
 import com.justdebugit.metrics.OSUtil;
+import com.justdebugit.metrics.influxdb.SeriesTemplates.MeasurementTemplate;
+import com.justdebugit.metrics.influxdb.SeriesTemplates.MetricTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -21,6 +37,8 @@ public class InfluxdbReporter extends ScheduledReporter {
     private static final Logger logger = LoggerFactory.getLogger(InfluxdbReporter.class);
 
     private static final String HOST_TAG_KEY = "host";
+    private static final String SELF_METRIC_GROUP = "[reporter]";//自身metric写入 <appName>_reporter_<type>
+    private static final int PARTITIONS_PER_THREAD = 4;//分片数多于线程数，耗时不均的分片可以由空闲线程接手
 
     /**
      * 为 {@link InfluxdbReporter} 返回一个 {@link Builder}
@@ -43,6 +61,22 @@ public class InfluxdbReporter extends ScheduledReporter {
         private MetricFilter filter;
         private Map<String, String> tagMap;
         private String appName;
+        private int heartbeatIntervals;
+        private int parallelism;
+        private boolean reportSelfMetrics;
+        private TimeUnit precision;
+        private boolean compactPayload;
+        private MetricFilter rollupFilter;
+        private long rollupSampleMillis;
+        private long maxIntervalMillis;
+        private long slowSendMillis;
+        private long slowCollectMillis;
+        private long idleTtlMillis;
+        private boolean asyncGauges;
+        private MetricFilter asyncGaugeFilter;
+        private long gaugeBudgetMillis;
+        private int gaugeThreads;
+        private long maxJitterMillis = -1;
 
         private Builder(MetricRegistry registry) {
             this.tagMap = new HashMap<String, String>();
@@ -52,6 +86,8 @@ public class InfluxdbReporter extends ScheduledReporter {
             this.rateUnit = TimeUnit.SECONDS;
             this.durationUnit = TimeUnit.MILLISECONDS;
             this.filter = MetricFilter.ALL;
+            this.parallelism = 1;
+            this.precision = TimeUnit.NANOSECONDS;
         }
 
 
@@ -126,6 +162,166 @@ public class InfluxdbReporter extends ScheduledReporter {
             return this;
         }
 
+        /**
+         * 只上报有变化的series:计数类metric的count或gauge的值与上次写出时相同则跳过，
+         * 但连续跳过 heartbeatIntervals - 1 个周期后仍会写出一次，避免series看起来已经消失
+         *
+         * @param heartbeatIntervals 最多每隔多少个周期强制写出一次，必须大于0
+         * @return
+         */
+        public Builder reportChangesOnly(int heartbeatIntervals) {
+            if (heartbeatIntervals <= 0) {
+                throw new IllegalArgumentException("heartbeatIntervals must be positive");
+            }
+            this.heartbeatIntervals = heartbeatIntervals;
+            return this;
+        }
+
+        /**
+         * 并行采集metric的线程数，默认1即在report线程中串行采集
+         * <p>
+         * 大于1时各measurement分组被切分到一个 {@link ForkJoinPool} 中并行读取(getSnapshot、gauge的getValue等)并编码，
+         * 每个分片写入自己的缓冲，最后按分组顺序合并写出，输出与串行时一致。适合metric数以万计的registry
+         *
+         * @param parallelism
+         * @return
+         */
+        public Builder parallelism(int parallelism) {
+            if (parallelism <= 0) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * 每个周期同时写出reporter自身的metric(见 {@link InfluxdbReporter#getSelfMetrics()})到
+         * &lt;appName&gt;_reporter_gauge 等measurement，series数固定，不随业务metric增加
+         *
+         * @return
+         */
+        public Builder reportSelfMetrics() {
+            this.reportSelfMetrics = true;
+            return this;
+        }
+
+        /**
+         * 精简的数据格式，减小每个batch的大小:
+         * 时间戳按precision输出(如毫秒时省去6位无用的0);整数以integer类型(i后缀)写入;
+         * 浮点数输出能精确还原的最短形式，不再固定两位小数(小数值如cpu负载不再被截断为0.00)。
+         * <p>
+         * influxdb需设置相同的精度，如 {@link InfluxdbHttp.Builder#precision(TimeUnit)}，否则构建时抛出异常。
+         * 已按默认格式写入过的field在influxdb中是float类型，改为integer会写入失败，应写入新的数据库
+         *
+         * @param precision 时间戳精度，如 SECONDS、MILLISECONDS
+         * @return
+         */
+        public Builder compactPayload(TimeUnit precision) {
+            InfluxdbHttp.precisionParam(precision);
+            this.precision = precision;
+            this.compactPayload = true;
+            return this;
+        }
+
+        /**
+         * gauge汇总采样:rollupFilter选中的gauge由后台线程每隔sampleInterval读取一次，
+         * 每个周期写出周期内的min、max、mean及last(最后一次采样值)，value同样写为最后一次采样值。
+         * 上报间隔较长时也能看到cpu负载等的短时尖峰;采样在start时开始，stop时停止
+         *
+         * @param rollupFilter   需要汇总采样的gauge
+         * @param sampleInterval 采样间隔，如1秒
+         * @param unit
+         * @return
+         */
+        public Builder rollupGauges(MetricFilter rollupFilter, long sampleInterval, TimeUnit unit) {
+            if (rollupFilter == null || unit.toMillis(sampleInterval) <= 0) {
+                throw new IllegalArgumentException("rollupFilter can not be null and sampleInterval must be at least 1ms");
+            }
+            this.rollupFilter = rollupFilter;
+            this.rollupSampleMillis = unit.toMillis(sampleInterval);
+            return this;
+        }
+
+        /**
+         * 自适应上报间隔:start时的period为最短间隔，某个周期发送耗时超过slowSend、采集编码耗时超过slowCollect
+         * 或发送失败时，间隔加倍(不超过maxInterval)，减轻influxdb过载时的写入压力;之后每个正常的周期缩短一个period，
+         * 直到恢复为period。当前间隔可通过 {@link #getSelfMetrics()} 中的 [reporter].interval.ms 查看
+         *
+         * @param maxInterval 最长间隔
+         * @param slowSend    发送(flush)耗时阈值
+         * @param slowCollect 采集及编码耗时阈值
+         * @param unit
+         * @return
+         */
+        public Builder adaptiveInterval(long maxInterval, long slowSend, long slowCollect, TimeUnit unit) {
+            if (unit.toMillis(maxInterval) <= 0 || slowSend <= 0 || slowCollect <= 0) {
+                throw new IllegalArgumentException("maxInterval,slowSend and slowCollect must be positive");
+            }
+            this.maxIntervalMillis = unit.toMillis(maxInterval);
+            this.slowSendMillis = Math.max(1, unit.toMillis(slowSend));
+            this.slowCollectMillis = Math.max(1, unit.toMillis(slowCollect));
+            return this;
+        }
+
+        /**
+         * 清理空闲的带tag metric:名称经 {@link InfluxdbMetrics#makeMetricName} 生成的counter、histogram、meter、timer，
+         * count超过ttl没有变化时，写出最后一次后从registry中移除，避免按需创建的series只增不减。
+         * 移除数及跟踪数见 {@link #getSelfMetrics()} 中的 [reporter].series.evicted、[reporter].series.tracked
+         * <p>
+         * 调用方不应长期持有这类metric的引用，每次通过registry获取，移除后更新会记到新创建的metric上
+         *
+         * @param ttl 空闲时间，应为上报周期的数倍
+         * @param unit
+         * @return
+         */
+        public Builder evictIdleSeries(long ttl, TimeUnit unit) {
+            if (unit.toMillis(ttl) <= 0) {
+                throw new IllegalArgumentException("ttl must be at least 1ms");
+            }
+            this.idleTtlMillis = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * 异步读取开销大的gauge:{@link AsyncGauge} 及filter选中的gauge(如 [jvm.thread] 下的线程状态统计)由后台线程刷新，
+         * report时写出缓存的value及其时效age(毫秒)，慢gauge不再拖慢整个周期;第一次刷新完成前不写出。
+         * 单次读取超过timeBudget计入 [reporter].gauges.timeouts，仍未返回的gauge数见 [reporter].gauges.stuck;
+         * 卡住的gauge各占用一个刷新线程，全部线程被卡住时跳过的读取计入 [reporter].gauges.skipped
+         *
+         * @param filter     除AsyncGauge外需要异步读取的gauge，可为null
+         * @param timeBudget 每个gauge单次读取的时间预算
+         * @param unit
+         * @param threads    刷新线程数
+         * @return
+         */
+        public Builder asyncGauges(MetricFilter filter, long timeBudget, TimeUnit unit, int threads) {
+            if (unit.toMillis(timeBudget) <= 0 || threads <= 0) {
+                throw new IllegalArgumentException("timeBudget must be at least 1ms and threads must be positive");
+            }
+            this.asyncGauges = true;
+            this.asyncGaugeFilter = filter;
+            this.gaugeBudgetMillis = unit.toMillis(timeBudget);
+            this.gaugeThreads = threads;
+            return this;
+        }
+
+        /**
+         * 按墙上时间对齐上报:时间戳取整到上报间隔的边界(如间隔10秒时为:00、:10、:20)，不同主机的point落在相同时间点上，
+         * 跨主机 GROUP BY time() 的结果整齐;实际发送在边界之后延迟一个由host tag确定的抖动(小于maxJitter及间隔)，
+         * 同一主机每次相同，各主机分散开，避免整个集群在同一毫秒写入(去掉了host tag时按主机名及appName计算)
+         *
+         * @param maxJitter 抖动窗口，如间隔的一半;0表示不抖动
+         * @param unit
+         * @return
+         */
+        public Builder alignToInterval(long maxJitter, TimeUnit unit) {
+            if (maxJitter < 0) {
+                throw new IllegalArgumentException("maxJitter can not be negative");
+            }
+            this.maxJitterMillis = unit.toMillis(maxJitter);
+            return this;
+        }
+
         /**
          * 构建 {@link InfluxdbReporter}
          *
@@ -138,73 +334,551 @@ public class InfluxdbReporter extends ScheduledReporter {
             if (appName == null) {
                 throw new IllegalArgumentException("appname can not be null");
             }
+            checkPrecision(influxdb, precision);
+            MetricFilter sampled = null;
+            if (rollupFilter != null) {
+                final MetricFilter reported = filter;
+                final MetricFilter selected = rollupFilter;
+                sampled = new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return reported.matches(name, metric) && selected.matches(name, metric);
+                    }
+                };
+            }
+            GaugeRefresher refresher = asyncGauges ? new GaugeRefresher(asyncGaugeFilter,
+                    TimeUnit.MILLISECONDS.toNanos(gaugeBudgetMillis), gaugeThreads) : null;
             return new InfluxdbReporter(registry, influxdb, clock, rateUnit, durationUnit, filter,
-                    tagMap, appName);
+                    tagMap, appName, heartbeatIntervals, parallelism, reportSelfMetrics, precision, compactPayload,
+                    sampled, rollupSampleMillis, maxIntervalMillis, slowSendMillis, slowCollectMillis,
+                    idleTtlMillis, refresher, maxJitterMillis);
         }
     }
 
 
+    /**
+     * 检查influxdb写入时声明的时间戳精度与写出的时间戳精度是否一致
+     *
+     * @param influxdb
+     * @param precision
+     */
+    static void checkPrecision(Influxdb influxdb, TimeUnit precision) {
+        TimeUnit influxdbPrecision = influxdb.getPrecision();
+        if (influxdbPrecision != precision) {
+            throw new IllegalArgumentException("precision of " + influxdb.getClass().getSimpleName() + "("
+                    + influxdbPrecision + ") does not match the timestamps written(" + precision + ")");
+        }
+    }
+
+    private final MetricRegistry registry;
     private final Influxdb influxdb;
     private final Clock clock;
     private final Map<String, String> tagMap;
     private final String appName;
+    private final SeriesTemplates seriesTemplates;
+    private final int heartbeatIntervals;//大于0时只上报有变化的series
+    private final LineProtocolWriter pointWriter;//只在report线程中使用，每个point复用
+    private final TimeUnit precision;//写出的时间戳精度
+    private final ForkJoinPool collectPool;//并行采集时使用，串行时为null
+    private final LineProtocolWriter[] partitionWriters;//并行采集时每个分片一个，按分片顺序合并
+    private final int[][] partitionLineEnds;//各分片中每一行的结束位置，按行交给influxdb
+    private final ReporterStats stats = new ReporterStats();
+    private final MetricRegistry selfMetrics = new MetricRegistry();
+    private final SeriesTemplates selfTemplates;//写出自身metric时使用，不写出时为null
+    private final MetricFilter rollupFilter;//汇总采样的gauge，不采样时为null
+    private final ConcurrentHashMap<String, GaugeRollup> rollups = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sampler;//gauge汇总采样线程，不采样时为null
+    private final long rollupSampleMillis;
+    private final ScheduledExecutorService tickScheduler;//自适应间隔或对齐时代替父类的定时线程，否则为null
+    private final long maxIntervalMillis;
+    private final long slowSendNanos;
+    private final long slowCollectNanos;
+    private volatile long baseIntervalMillis;//start时的period
+    private volatile long intervalMillis;//当前的上报间隔
+    private final IdleSeriesEvictor evictor;//不清理时为null
+    private final GaugeRefresher refresher;//不异步读取gauge时为null
+    private final long maxJitterMillis;//小于0时不对齐
+    private final int hostHash;//确定抖动
+    private volatile long alignedTime;//对齐的周期中本次point的时间戳(毫秒)，其他时候为0
 
     private InfluxdbReporter(MetricRegistry registry, Influxdb influxdb, Clock clock,
                              TimeUnit rateUnit, TimeUnit durationUnit, MetricFilter filter, Map<String, String> tagMap,
-                             String appName) {
+                             String appName, int heartbeatIntervals, int parallelism, boolean reportSelfMetrics,
+                             TimeUnit precision, boolean compactPayload, MetricFilter rollupFilter,
+                             long rollupSampleMillis, long maxIntervalMillis, long slowSendMillis,
+                             long slowCollectMillis, long idleTtlMillis, GaugeRefresher refresher,
+                             long maxJitterMillis) {
         super(registry, "influxdb-reporter", filter, rateUnit, durationUnit);
+        this.registry = registry;
         this.influxdb = influxdb;
         this.clock = clock;
         this.appName = appName;
         this.tagMap = Collections.unmodifiableMap(tagMap);
+        this.seriesTemplates = new SeriesTemplates(appName, this.tagMap);
+        this.heartbeatIntervals = heartbeatIntervals;
+        this.precision = precision;
+        this.pointWriter = new LineProtocolWriter(compactPayload);
+        if (parallelism > 1) {
+            this.collectPool = new ForkJoinPool(parallelism);
+            this.partitionWriters = new LineProtocolWriter[parallelism * PARTITIONS_PER_THREAD];
+            for (int i = 0; i < partitionWriters.length; i++) {
+                partitionWriters[i] = new LineProtocolWriter(compactPayload);
+            }
+            this.partitionLineEnds = new int[partitionWriters.length][16];
+        } else {
+            this.collectPool = null;
+            this.partitionWriters = null;
+            this.partitionLineEnds = null;
+        }
+        selfMetrics.register(SELF_METRIC_GROUP, stats);
+        if (influxdb instanceof MetricSet) {
+            selfMetrics.register(SELF_METRIC_GROUP, (MetricSet) influxdb);
+        }
+        this.selfTemplates = reportSelfMetrics ? new SeriesTemplates(appName, this.tagMap) : null;
+        registry.addListener(seriesTemplates);
+        this.rollupFilter = rollupFilter;
+        if (rollupFilter != null) {
+            this.sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "influxdb-gauge-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.sampler = null;
+        }
+        this.rollupSampleMillis = rollupSampleMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.slowSendNanos = TimeUnit.MILLISECONDS.toNanos(slowSendMillis);
+        this.slowCollectNanos = TimeUnit.MILLISECONDS.toNanos(slowCollectMillis);
+        this.maxJitterMillis = maxJitterMillis;
+        String host = tagMap.get(HOST_TAG_KEY);
+        this.hostHash = mix((host != null ? host : OSUtil.getHostName() + appName).hashCode());
+        if (maxIntervalMillis > 0 || maxJitterMillis >= 0) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "influxdb-reporter-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);//stop后不再执行已安排的下一次上报
+            this.tickScheduler = scheduler;
+        } else {
+            this.tickScheduler = null;
+        }
+        selfMetrics.register(MetricRegistry.name(SELF_METRIC_GROUP, "interval.ms"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return intervalMillis;
+            }
+        });
+        if (idleTtlMillis > 0) {
+            this.evictor = new IdleSeriesEvictor(registry, idleTtlMillis);
+            selfMetrics.register(SELF_METRIC_GROUP, evictor);
+        } else {
+            this.evictor = null;
+        }
+        this.refresher = refresher;
+        if (refresher != null) {
+            selfMetrics.register(SELF_METRIC_GROUP, refresher);
+        }
+    }
+
+    /**
+     * reporter自身的metric:每个周期的总耗时、各类metric的采集编码耗时、名称解析耗时、发送耗时、写出的point数及字节数、失败次数，
+     * influxdb实现了 {@link MetricSet} 时(如 {@link InfluxdbHttp} 的请求延迟及各类状态码计数)也包含在内。
+     * 可注册到其他registry，或通过 {@link Builder#reportSelfMetrics()} 随业务metric一起写出
+     *
+     * @return
+     */
+    public MetricRegistry getSelfMetrics() {
+        return selfMetrics;
+    }
+
+    /**
+     * 开启自适应间隔时按 {@link Builder#adaptiveInterval(long, long, long, TimeUnit)} 调整每次的间隔，period为最短间隔;
+     * 开启 {@link Builder#alignToInterval(long, TimeUnit)} 时在间隔边界加上本机的抖动后上报
+     *
+     * @param period
+     * @param unit
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        baseIntervalMillis = intervalMillis = unit.toMillis(period);
+        if (sampler != null) {
+            sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    sampleGauges();
+                }
+            }, rollupSampleMillis, rollupSampleMillis, TimeUnit.MILLISECONDS);
+        }
+        if (tickScheduler == null) {
+            super.start(period, unit);
+            return;
+        }
+        if (baseIntervalMillis <= 0 || maxIntervalMillis > 0 && baseIntervalMillis > maxIntervalMillis) {
+            throw new IllegalArgumentException("period must be positive and not greater than maxInterval");
+        }
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        final long interval = intervalMillis;
+        final long boundary;
+        long delay;
+        if (maxJitterMillis >= 0) {
+            long now = clock.getTime();
+            boundary = (now / interval + 1) * interval;//错过的边界直接跳过
+            long window = Math.min(maxJitterMillis, interval);
+            delay = boundary - now + (window == 0 ? 0 : (hostHash & Integer.MAX_VALUE) % window);
+        } else {
+            boundary = 0;
+            delay = interval;
+        }
+        try {
+            tickScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    alignedTime = boundary;
+                    try {
+                        report();
+                    } catch (RuntimeException e) {
+                        logger.error("RuntimeException thrown from report. Exception was suppressed.", e);
+                    } finally {
+                        alignedTime = 0;
+                    }
+                    if (maxIntervalMillis > 0) {
+                        adaptInterval();
+                    }
+                    scheduleNext();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * murmur3的finalizer，名称相近的主机(如web-01、web-02)也能得到分散的抖动
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 根据最近一个周期的耗时及是否失败调整间隔:有压力时加倍，正常时每次缩短一个最短间隔
+     */
+    private void adaptInterval() {
+        long sendNanos = stats.getLastSendNanos();
+        long collectNanos = stats.getLastTickNanos() - sendNanos;
+        boolean overloaded = stats.isLastFailed() || sendNanos > slowSendNanos || collectNanos > slowCollectNanos;
+        long current = intervalMillis;
+        long next = overloaded ? Math.min(maxIntervalMillis, current * 2) : Math.max(baseIntervalMillis, current - baseIntervalMillis);
+        if (next != current) {
+            logger.info("Influxdb report interval changed from {}ms to {}ms (send {}ms,collect {}ms,failed {})", current, next,
+                    TimeUnit.NANOSECONDS.toMillis(sendNanos), TimeUnit.NANOSECONDS.toMillis(collectNanos), stats.isLastFailed());
+            intervalMillis = next;
+        }
     }
 
     @Override
-    public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+    public void stop() {
+        registry.removeListener(seriesTemplates);
+        try {
+            super.stop();
+        } finally {
+            if (tickScheduler != null) {
+                tickScheduler.shutdown();
+            }
+            if (refresher != null) {
+                refresher.shutdown();
+            }
+            if (collectPool != null) {
+                collectPool.shutdown();
+            }
+            if (sampler != null) {
+                sampler.shutdown();
+            }
+        }
+    }
+
+    /**
+     * 采样线程中读取选中的gauge，gauge被替换(重新注册)时重新开始汇总
+     */
+    private void sampleGauges() {
+        try {
+            for (Map.Entry<String, Gauge<?>> entry : typed(registry.getGauges(rollupFilter)).entrySet()) {
+                GaugeRollup rollup = rollups.get(entry.getKey());
+                if (rollup == null || rollup.getSource() != entry.getValue()) {
+                    rollup = new GaugeRollup(entry.getValue());
+                    rollups.put(entry.getKey(), rollup);
+                }
+                try {
+                    rollup.sample();
+                } catch (Exception e) {
+                    logger.debug("Sample gauge {} failed", entry.getKey(), e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);//异常会终止定时任务
+        }
+    }
+
+    /**
+     * 结束各汇总gauge的当前周期，并在本次上报中以汇总值代替原gauge;已从registry移除的gauge不再汇总
+     */
+    private SortedMap<String, Gauge<?>> rollUp(SortedMap<String, Gauge<?>> gauges) {
+        SortedMap<String, Gauge<?>> rolled = new TreeMap<>(gauges);
+        for (Iterator<Map.Entry<String, GaugeRollup>> it = rollups.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, GaugeRollup> entry = it.next();
+            Gauge<?> gauge = gauges.get(entry.getKey());
+            if (gauge == null) {
+                it.remove();
+            } else if (gauge == entry.getValue().getSource()) {
+                entry.getValue().endWindow();
+                rolled.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return rolled;
+    }
+
+    /**
+     * MetricRegistry返回原始类型的Gauge，转为{@code Gauge<?>}
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static SortedMap<String, Gauge<?>> typed(SortedMap<String, Gauge> gauges) {
+        return (SortedMap) gauges;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void report(SortedMap<String, Gauge> rawGauges, SortedMap<String, Counter> counters,
                        SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
                        SortedMap<String, Timer> timers) {
+        long tickStart = System.nanoTime();
+        SortedMap<String, Gauge<?>> gauges = typed(rawGauges);
         try {
-            long nanoTimestamp = clock.getTime() * 1000 * 1000;
-            reportMetrics(gauges, "gauge", nanoTimestamp);
-            reportMetrics(counters, "counter", nanoTimestamp);
-            reportMetrics(histograms, "histogram", nanoTimestamp);
-            reportMetrics(meters, "meter", nanoTimestamp);
-            reportMetrics(timers, "timer", nanoTimestamp);
-            influxdb.flush();
+            if (evictor != null) {
+                evictor.track(clock.getTime(), counters, histograms, meters, timers);
+            }
+            if (sampler != null) {
+                gauges = rollUp(gauges);
+            }
+            if (refresher != null) {
+                gauges = refresher.refresh(gauges);
+            }
+            long time = alignedTime;
+            long timestamp = precision.convert(time > 0 ? time : clock.getTime(), TimeUnit.MILLISECONDS);
+            if (collectPool != null) {
+                long resolveStart = System.nanoTime();
+                List<MeasurementGroup<?>> groups = new ArrayList<>();
+                addGroups(groups, gauges, "gauge", MeasurementFields.GAUGE);
+                addGroups(groups, counters, "counter", MeasurementFields.COUNTER);
+                addGroups(groups, histograms, "histogram", MeasurementFields.HISTOGRAM);
+                addGroups(groups, meters, "meter", MeasurementFields.METER);
+                addGroups(groups, timers, "timer", MeasurementFields.TIMER);
+                stats.addResolveNanos(System.nanoTime() - resolveStart);
+                reportInParallel(groups, timestamp);
+            } else {
+                reportMetrics(seriesTemplates, gauges, "gauge", MeasurementFields.GAUGE, timestamp);
+                reportMetrics(seriesTemplates, counters, "counter", MeasurementFields.COUNTER, timestamp);
+                reportMetrics(seriesTemplates, histograms, "histogram", MeasurementFields.HISTOGRAM, timestamp);
+                reportMetrics(seriesTemplates, meters, "meter", MeasurementFields.METER, timestamp);
+                reportMetrics(seriesTemplates, timers, "timer", MeasurementFields.TIMER, timestamp);
+            }
+            if (selfTemplates != null) {
+                reportSelfMetrics(timestamp);
+            }
+            long flushStart = System.nanoTime();
+            try {
+                influxdb.flush();
+            } finally {
+                stats.addSendNanos(System.nanoTime() - flushStart);
+            }
+            if (evictor != null) {
+                evictor.evict();
+            }
         } catch (InfluxdbException e) {
+            stats.failed();
+            resetReported();
             logger.warn("Report metrics data failed,please make sure remote influxdb is OK", e);
         } catch (Exception e) {
+            stats.failed();
+            resetReported();
             logger.error(e.getMessage(), e);
+        } finally {
+            stats.endTick(System.nanoTime() - tickStart);
         }
     }
 
-    private <T extends Metric> void reportMetrics(Map<String, T> metrics, String type, long timestamp) throws InfluxdbException {
+    /**
+     * 本周期未能发送成功，writeMeasurement中记下的已写出状态作废，下个周期所有分组都完整写出一次，
+     * 避免只上报变化时丢掉本周期的变化
+     */
+    private void resetReported() {
+        if (heartbeatIntervals <= 0) {
+            return;
+        }
+        seriesTemplates.resetReported();
+        if (selfTemplates != null) {
+            selfTemplates.resetReported();
+        }
+    }
+
+    /**
+     * reporter自身的metric(见 {@link #getSelfMetrics()})，使用独立的模板缓存，不受filter影响
+     */
+    private void reportSelfMetrics(long timestamp) throws InfluxdbException {
+        reportMetrics(selfTemplates, typed(selfMetrics.getGauges()), "gauge", MeasurementFields.GAUGE, timestamp);
+        reportMetrics(selfTemplates, selfMetrics.getCounters(), "counter", MeasurementFields.COUNTER, timestamp);
+        reportMetrics(selfTemplates, selfMetrics.getHistograms(), "histogram", MeasurementFields.HISTOGRAM, timestamp);
+        reportMetrics(selfTemplates, selfMetrics.getMeters(), "meter", MeasurementFields.METER, timestamp);
+        reportMetrics(selfTemplates, selfMetrics.getTimers(), "timer", MeasurementFields.TIMER, timestamp);
+    }
+
+    private <T extends Metric> void reportMetrics(SeriesTemplates templates, Map<String, T> metrics, String type,
+                                                  MeasurementFields<T> mf, long timestamp) throws InfluxdbException {
         if (metrics == null || metrics.isEmpty()) {
             return;
         }
-        Map<String, Map<String, T>> combined = combineMeasurement(metrics);
-        for (Map.Entry<String, Map<String, T>> entry : combined.entrySet()) {
-            reportMetrics(entry.getKey(), entry.getValue(), type, timestamp);
+        long resolveStart = System.nanoTime();
+        Map<MeasurementTemplate, Map<MetricTemplate, T>> combined = combineMeasurement(templates, metrics, type, mf);
+        stats.addResolveNanos(System.nanoTime() - resolveStart);
+        int typeIndex = ReporterStats.typeIndex(type);
+        for (Map.Entry<MeasurementTemplate, Map<MetricTemplate, T>> entry : combined.entrySet()) {
+            pointWriter.reset();
+            long start = System.nanoTime();
+            boolean written = writeMeasurement(entry.getKey(), entry.getValue(), mf, timestamp, pointWriter);
+            stats.addTypeNanos(typeIndex, System.nanoTime() - start);
+            if (written) {
+                write(pointWriter);
+            }
+        }
+    }
+
+    private void write(LineProtocolWriter writer) throws InfluxdbException {
+        long start = System.nanoTime();
+        try {
+            influxdb.write(writer);
+        } finally {
+            stats.addSendNanos(System.nanoTime() - start);
         }
+        stats.addWritten(writer);
     }
 
-    private <T extends Metric> void reportMetrics(String measurement, Map<String, T> metrics, String type, long timestamp) throws InfluxdbException {
-        String fullMeasurement = InfluxdbMetrics.makeMeasurementName(appName, measurement, type);
-        MeasurementFields<T> mf;
-        if ("meter".equals(type)) {
-            mf = (MeasurementFields<T>) MeasurementFields.METER;
-        } else if ("timer".equals(type)) {
-            mf = (MeasurementFields<T>) MeasurementFields.TIMER;
-        } else if ("counter".equals(type)) {
-            mf = (MeasurementFields<T>) MeasurementFields.COUNTER;
-        } else if ("gauge".equals(type)) {
-            mf = (MeasurementFields<T>) MeasurementFields.GAUGE;
-        } else if ("histogram".equals(type)) {
-            mf = (MeasurementFields<T>) MeasurementFields.HISTOGRAM;
-        } else {
-            throw new IllegalArgumentException("unknown type: " + type);
+    /**
+     * 把一个分组编码为一行追加到writer
+     *
+     * @return 是否写出了该行，只上报变化时未变化的分组返回false
+     */
+    private <T extends Metric> boolean writeMeasurement(MeasurementTemplate measurement, Map<MetricTemplate, T> metrics,
+                                                        MeasurementFields<T> mf, long timestamp, LineProtocolWriter writer) {
+        writer.series(measurement.seriesKey);
+        boolean changed = !measurement.reported;
+        for (Map.Entry<MetricTemplate, T> entry : metrics.entrySet()) {
+            MetricTemplate template = entry.getKey();
+            long signature = mf.writeFields(template.fieldKeys, entry.getValue(), reporterDelegate, writer);
+            if (!template.reported || template.signature != signature) {
+                changed = true;
+                template.reported = true;
+                template.signature = signature;
+            }
+        }
+        if (heartbeatIntervals > 0 && !changed && ++measurement.unchangedTicks < heartbeatIntervals) {
+            writer.abortLine();
+            return false;
+        }
+        if (writer.endLine(timestamp)) {
+            measurement.reported = true;
+            measurement.unchangedTicks = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private <T extends Metric> void addGroups(List<MeasurementGroup<?>> groups, Map<String, T> metrics, String type,
+                                              MeasurementFields<T> mf) {
+        if (metrics == null || metrics.isEmpty()) {
+            return;
+        }
+        int typeIndex = ReporterStats.typeIndex(type);
+        for (Map.Entry<MeasurementTemplate, Map<MetricTemplate, T>> entry
+                : combineMeasurement(seriesTemplates, metrics, type, mf).entrySet()) {
+            groups.add(new MeasurementGroup<>(entry.getKey(), entry.getValue(), mf, typeIndex));
+        }
+    }
+
+    /**
+     * 分组按顺序切成连续的分片，在collectPool中并行编码到各自的writer，再按分片顺序逐行写出，输出顺序与串行时相同。
+     * 同一分组每个周期只在一个分片中处理，模板上的状态不会被并发修改;invoke返回即保证分片中的写入对report线程可见
+     */
+    private void reportInParallel(final List<MeasurementGroup<?>> groups, final long timestamp) throws InfluxdbException {
+        if (groups.isEmpty()) {
+            return;
+        }
+        final int partitions = Math.min(groups.size(), partitionWriters.length);
+        collectPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>(partitions);
+                for (int i = 0; i < partitions; i++) {
+                    final int index = i;
+                    final int from = groups.size() * i / partitions;
+                    final int to = groups.size() * (i + 1) / partitions;
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            LineProtocolWriter writer = partitionWriters[index];
+                            int[] ends = partitionLineEnds[index];
+                            writer.reset();
+                            for (int g = from; g < to; g++) {
+                                if (writeGroup(groups.get(g), timestamp, writer)) {
+                                    if (writer.lines() > ends.length) {
+                                        ends = partitionLineEnds[index] = Arrays.copyOf(ends, ends.length * 2);
+                                    }
+                                    ends[writer.lines() - 1] = writer.size();
+                                }
+                            }
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+        for (int i = 0; i < partitions; i++) {
+            writeLines(partitionWriters[i], partitionLineEnds[i]);
         }
-        influxdb.writeData(buildSinglePoint(fullMeasurement, assembleTagMap(tagMap, measurement), mf.getFields(metrics, reporterDelegate), timestamp));
+    }
+
+    /**
+     * 与串行时一样每次交给influxdb一行，由influxdb按maxBatchPoints、maxBatchBytes切分，分片再大也不会超出上限
+     */
+    private void writeLines(LineProtocolWriter partition, int[] ends) throws InfluxdbException {
+        byte[] buf = partition.buffer();
+        int start = 0;
+        for (int i = 0; i < partition.lines(); i++) {
+            pointWriter.reset();
+            pointWriter.appendLine(buf, start, ends[i] - start);
+            start = ends[i];
+            write(pointWriter);
+        }
+    }
+
+    private <T extends Metric> boolean writeGroup(MeasurementGroup<T> group, long timestamp, LineProtocolWriter writer) {
+        long start = System.nanoTime();
+        boolean written = writeMeasurement(group.measurement, group.metrics, group.fields, timestamp, writer);
+        stats.addTypeNanos(group.typeIndex, System.nanoTime() - start);
+        return written;
     }
 
     private final MeasurementFields.ReporterDelegate reporterDelegate = new MeasurementFields.ReporterDelegate() {
@@ -219,43 +893,36 @@ public class InfluxdbReporter extends ScheduledReporter {
         }
     };
 
-    private <T extends Metric> Map<String, Map<String, T>> combineMeasurement(Map<String, T> metrics) {
-        Map<String, Map<String, T>> combined = new HashMap<>(metrics.size());
+    /**
+     * 按measurement分组，分组及tag、field名称等均取自 {@link SeriesTemplates} 缓存
+     */
+    private static <T extends Metric> Map<MeasurementTemplate, Map<MetricTemplate, T>> combineMeasurement(
+            SeriesTemplates templates, Map<String, T> metrics, String type, MeasurementFields<T> mf) {
+        Map<MeasurementTemplate, Map<MetricTemplate, T>> combined = new LinkedHashMap<>(metrics.size());
         for (Map.Entry<String, T> entry : metrics.entrySet()) {
-            String measurement = InfluxdbMetrics.resolveMeasurement(entry.getKey());
-            Map<String, T> metricList = combined.get(measurement);
+            MetricTemplate template = templates.get(entry.getKey(), type, mf);
+            Map<MetricTemplate, T> metricList = combined.get(template.measurement);
             if (metricList == null) {
-                metricList = new HashMap<>();
-                combined.put(measurement, metricList);
+                metricList = new LinkedHashMap<>();
+                combined.put(template.measurement, metricList);
             }
-            metricList.put(entry.getKey(), entry.getValue());
+            metricList.put(template, entry.getValue());
         }
         return combined;
     }
 
-    private static SinglePoint buildSinglePoint(String name, Map<String, String> tagMap,
-                                                Map<String, Object> fieldMap, long timestamp) {
-        Map<String, Object> finalMap = new HashMap<String, Object>();
-        for (Map.Entry<String, Object> entry : fieldMap.entrySet()) {
-            Object value = entry.getValue();
-            if (value instanceof Number) {
-                if (value instanceof Double) {
-                    finalMap.put(entry.getKey(), String.format("%.2f", (Double) value));
-                } else {
-                    finalMap.put(entry.getKey(), value);
-                }
-            }
-        }
-        return SinglePoint.newBuilder(name).addAllTag(tagMap).addAllField(finalMap)
-                .setTimestamp(timestamp).build();
-    }
+    private static final class MeasurementGroup<T extends Metric> {
+        private final MeasurementTemplate measurement;
+        private final Map<MetricTemplate, T> metrics;
+        private final MeasurementFields<T> fields;
+        private final int typeIndex;
 
-    private static Map<String, String> assembleTagMap(Map<String, String> commonTagMap, String metric) {
-        Map<String, String> metricTagMap = InfluxdbMetrics.getTagFromMetricName(metric);
-        if (metricTagMap == null || metricTagMap.isEmpty()) {
-            return commonTagMap;
+        private MeasurementGroup(MeasurementTemplate measurement, Map<MetricTemplate, T> metrics,
+                                 MeasurementFields<T> fields, int typeIndex) {
+            this.measurement = measurement;
+            this.metrics = metrics;
+            this.fields = fields;
+            this.typeIndex = typeIndex;
         }
-        metricTagMap.putAll(commonTagMap);
-        return metricTagMap;
     }
 }
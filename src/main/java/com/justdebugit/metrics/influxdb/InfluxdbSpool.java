@@ -0,0 +1,391 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发送失败的batch暂存到磁盘，influxdb恢复后由 {@link InfluxdbHttp} 按时间顺序限速重放
+ * <p>
+ * 数据保存在一个固定大小的内存映射文件中，按环形缓冲使用:空间不足时丢弃最早的batch，超过保留时间的batch在读取时丢弃。
+ * 进程重启后会继续使用文件中未重放的数据(不调用force，机器掉电时可能丢失最近写入的数据)
+ * <p>
+ * close后释放文件映射，之后的暂存、读取都被拒绝(append返回false并计入丢弃)
+ * <p>
+ * 用法:
+ * <pre>
+ * InfluxdbSpool spool = InfluxdbSpool.newBuilder(new File("/data/metrics.spool")).maxBytes(64 * 1024 * 1024).build();
+ * InfluxdbHttp.newBuilder().host("localhost").spool(spool).build();
+ * </pre>
+ *
+ * @author justdebugit
+ */
+public class InfluxdbSpool implements MetricSet, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(InfluxdbSpool.class);
+
+    private static final int MAGIC = 0x49465350;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 64;//magic,version,capacity,head,tail,count
+    private static final int HEAD_OFFSET = 16;
+    private static final int TAIL_OFFSET = 24;
+    private static final int COUNT_OFFSET = 32;
+    private static final int RECORD_HEADER = 16;//length,lines,createdMillis
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer mapped;
+    private final long capacity;
+    private final long retentionMillis;
+    private final long replayBytesPerSecond;
+    private final byte[] recordHeader = new byte[RECORD_HEADER];
+    private final ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader);
+
+    private long head;//最早记录的逻辑位置
+    private long tail;//下一条记录的逻辑位置
+    private int count;
+    private boolean closed;//close后mapped已释放，不能再访问
+
+    private final Counter spooledBatches = new Counter();
+    private final Counter spooledPoints = new Counter();
+    private final Counter replayedBatches = new Counter();
+    private final Counter replayedPoints = new Counter();
+    private final Counter droppedBatches = new Counter();//超出容量或被influxdb拒绝而丢弃
+    private final Counter expiredBatches = new Counter();//超过保留时间被丢弃
+
+    private InfluxdbSpool(Builder builder) throws IOException {
+        this.file = builder.file;
+        this.retentionMillis = builder.retentionMillis;
+        this.replayBytesPerSecond = builder.replayBytesPerSecond;
+        this.capacity = builder.maxBytes - FILE_HEADER;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean reuse = raf.length() == builder.maxBytes;
+            raf.setLength(builder.maxBytes);
+            this.mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, builder.maxBytes);
+            if (reuse && mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION && mapped.getLong(8) == capacity) {
+                head = mapped.getLong(HEAD_OFFSET);
+                tail = mapped.getLong(TAIL_OFFSET);
+                count = mapped.getInt(COUNT_OFFSET);
+                if (head < 0 || tail < head || tail - head > capacity || count < 0) {
+                    logger.warn("Influxdb spool {} is corrupted,discard it", file);
+                    head = tail = count = 0;
+                }
+            }
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putLong(8, capacity);
+            writePositions();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public static Builder newBuilder(File file) {
+        return new Builder(file);
+    }
+
+    public static class Builder {
+        private final File file;
+        private long maxBytes;
+        private long retentionMillis;
+        private long replayBytesPerSecond;
+
+        private Builder(File file) {
+            this.file = file;
+            this.maxBytes = 64 * 1024 * 1024;
+            this.retentionMillis = TimeUnit.HOURS.toMillis(1);
+            this.replayBytesPerSecond = 256 * 1024;
+        }
+
+        /**
+         * 文件大小，即最多暂存的字节数，默认64M
+         *
+         * @param maxBytes
+         * @return
+         */
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * 暂存数据的最长保留时间，默认1小时
+         *
+         * @param retention
+         * @param unit
+         * @return
+         */
+        public Builder retention(long retention, TimeUnit unit) {
+            this.retentionMillis = unit.toMillis(retention);
+            return this;
+        }
+
+        /**
+         * 重放速度上限，默认256K/s,避免influxdb恢复后瞬间涌入大量写请求
+         *
+         * @param replayBytesPerSecond
+         * @return
+         */
+        public Builder replayBytesPerSecond(long replayBytesPerSecond) {
+            this.replayBytesPerSecond = replayBytesPerSecond;
+            return this;
+        }
+
+        public InfluxdbSpool build() throws IOException {
+            if (file == null) {
+                throw new IllegalArgumentException("spool file can not be null");
+            }
+            if (maxBytes <= FILE_HEADER + RECORD_HEADER || maxBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("maxBytes must be between " + (FILE_HEADER + RECORD_HEADER)
+                        + " and " + Integer.MAX_VALUE);
+            }
+            if (retentionMillis <= 0 || replayBytesPerSecond <= 0) {
+                throw new IllegalArgumentException("retention and replayBytesPerSecond must be positive");
+            }
+            return new InfluxdbSpool(this);
+        }
+    }
+
+    /**
+     * 暂存一个batch，空间不足时丢弃最早的batch
+     *
+     * @param batch
+     * @return 是否暂存成功，batch超过文件容量或已close时返回false
+     */
+    public synchronized boolean append(LineProtocolWriter batch) {
+        int length = batch.size();
+        long need = RECORD_HEADER + length;
+        if (length == 0) {
+            return true;
+        }
+        if (closed || need > capacity) {
+            droppedBatches.inc();
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        expire(now);
+        while (capacity - (tail - head) < need) {
+            readRecordHeader(head);
+            droppedBatches.inc();
+            removeHead();
+        }
+        recordHeaderBuffer.clear();
+        recordHeaderBuffer.putInt(length).putInt(batch.lines()).putLong(now);
+        put(tail, recordHeader, RECORD_HEADER);
+        put(tail + RECORD_HEADER, batch.buffer(), length);
+        tail += need;
+        count++;
+        writePositions();
+        spooledBatches.inc();
+        spooledPoints.inc(batch.lines());
+        return true;
+    }
+
+    /**
+     * 读取最早的未过期batch追加到into，不移除
+     *
+     * @param into
+     * @return 该batch的位置，用于 {@link #remove(long, boolean)};没有数据或已close时返回-1
+     */
+    synchronized long peek(LineProtocolWriter into) {
+        if (closed) {
+            return -1;
+        }
+        expire(System.currentTimeMillis());
+        if (count == 0) {
+            return -1;
+        }
+        int length = readRecordHeader(head);
+        int lines = recordHeaderBuffer.getInt(4);
+        long pos = head + RECORD_HEADER;
+        int physical = physical(pos);
+        int first = (int) Math.min(length, FILE_HEADER + capacity - physical);
+        mapped.position(physical);
+        into.appendLines(mapped, first, first == length ? lines : 0);
+        if (first < length) {
+            mapped.position(FILE_HEADER);
+            into.appendLines(mapped, length - first, lines);
+        }
+        return head;
+    }
+
+    /**
+     * 重放成功或被influxdb拒绝后移除batch，期间若该batch已被覆盖则忽略
+     *
+     * @param position {@link #peek(LineProtocolWriter)} 的返回值
+     * @param replayed 是否重放成功
+     */
+    synchronized void remove(long position, boolean replayed) {
+        if (closed || count == 0 || position != head) {
+            return;
+        }
+        readRecordHeader(head);
+        if (replayed) {
+            replayedBatches.inc();
+            replayedPoints.inc(recordHeaderBuffer.getInt(4));
+        } else {
+            droppedBatches.inc();
+        }
+        removeHead();
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized int getPendingBatches() {
+        return count;
+    }
+
+    public synchronized long getPendingBytes() {
+        return tail - head;
+    }
+
+    long getReplayBytesPerSecond() {
+        return replayBytesPerSecond;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("pending.batches", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getPendingBatches();
+            }
+        });
+        metrics.put("pending.bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getPendingBytes();
+            }
+        });
+        metrics.put("spooled.batches", spooledBatches);
+        metrics.put("spooled.points", spooledPoints);
+        metrics.put("replayed.batches", replayedBatches);
+        metrics.put("replayed.points", replayedPoints);
+        metrics.put("dropped.batches", droppedBatches);
+        metrics.put("expired.batches", expiredBatches);
+        return metrics;
+    }
+
+    /**
+     * 保存读写位置，释放文件映射并关闭文件，重复调用无效
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writePositions();
+        unmap(mapped);
+        raf.close();
+    }
+
+    /**
+     * 立即释放映射，不等待gc回收MappedByteBuffer(期间文件无法删除，映射的内存也一直占用);
+     * java 9以后通过Unsafe.invokeCleaner，之前通过DirectBuffer的cleaner，都失败时留给gc
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            } catch (NoSuchMethodException e) {
+                // java 8及以前
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.debug("Unmap influxdb spool failed,leave it to gc", e);
+        }
+    }
+
+    private void expire(long now) {
+        while (count > 0) {
+            readRecordHeader(head);
+            if (now - recordHeaderBuffer.getLong(8) < retentionMillis) {
+                return;
+            }
+            expiredBatches.inc();
+            removeHead();
+        }
+    }
+
+    /**
+     * 移除最早的记录，调用前需先 {@link #readRecordHeader(long)}
+     */
+    private void removeHead() {
+        head += RECORD_HEADER + recordHeaderBuffer.getInt(0);
+        count--;
+        if (count == 0) {
+            head = tail = 0;
+        }
+        writePositions();
+    }
+
+    private int readRecordHeader(long pos) {
+        get(pos, recordHeader, RECORD_HEADER);
+        return recordHeaderBuffer.getInt(0);
+    }
+
+    private void writePositions() {
+        mapped.putLong(HEAD_OFFSET, head);
+        mapped.putLong(TAIL_OFFSET, tail);
+        mapped.putInt(COUNT_OFFSET, count);
+    }
+
+    private int physical(long logical) {
+        return (int) (FILE_HEADER + logical % capacity);
+    }
+
+    private void put(long logical, byte[] src, int len) {
+        int physical = physical(logical);
+        int first = (int) Math.min(len, FILE_HEADER + capacity - physical);
+        mapped.position(physical);
+        mapped.put(src, 0, first);
+        if (first < len) {
+            mapped.position(FILE_HEADER);
+            mapped.put(src, first, len - first);
+        }
+    }
+
+    private void get(long logical, byte[] dst, int len) {
+        int physical = physical(logical);
+        int first = (int) Math.min(len, FILE_HEADER + capacity - physical);
+        mapped.position(physical);
+        mapped.get(dst, 0, first);
+        if (first < len) {
+            mapped.position(FILE_HEADER);
+            mapped.get(dst, first, len - first);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * udp 协议向influxdb写数据，没有应答，适合数据量很大、可以容忍少量丢失的场景
+ * <p>
+ * 多个point打包到一个不超过mtu的数据报中，单个point不会被拆分到两个数据报;超过mtu的point会被丢弃。
+ * 使用一个非阻塞的 {@link DatagramChannel} 及复用的direct buffer，socket发送缓冲满时该数据报被丢弃
+ * <p>
+ * influxdb需开启udp服务并在服务端配置写入的db，本身是一个 {@link MetricSet}，可查看发送的数据报数及字节数
+ * <p>
+ * 非线程安全
+ *
+ * @author justdebugit
+ */
+public class InfluxdbUdp implements Influxdb, MetricSet, Closeable {
+    private final DatagramChannel channel;
+    private final ByteBuffer packet;
+    private final LineProtocolWriter pointWriter = new LineProtocolWriter();//writeData(SinglePoint)时使用
+
+    private final Counter packetsSent = new Counter();
+    private final Counter bytesSent = new Counter();
+    private final Counter packetsDropped = new Counter();//socket发送缓冲满或发送出错
+    private final Counter pointsDropped = new Counter();//超过mtu的point
+    private final TimeUnit precision;
+    private IOException lastError;
+
+    private InfluxdbUdp(Builder builder) throws IOException {
+        this.packet = ByteBuffer.allocateDirect(builder.mtu);
+        this.precision = builder.precision;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(builder.host, builder.port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String host;
+        private int port;
+        private int mtu;
+        private TimeUnit precision;
+
+        private Builder() {
+            this.port = 8089;
+            this.mtu = 1400;
+            this.precision = TimeUnit.NANOSECONDS;
+        }
+
+        /**
+         * dbhost
+         *
+         * @param host
+         * @return
+         */
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * influxdb udp端口，默认8089
+         *
+         * @param port
+         * @return
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * 单个数据报的最大字节数，默认1400，避免ip分片
+         *
+         * @param mtu
+         * @return
+         */
+        public Builder mtu(int mtu) {
+            this.mtu = mtu;
+            return this;
+        }
+
+        /**
+         * 服务端udp配置中的precision，udp写入无法携带精度参数，必须与服务端一致，默认纳秒
+         *
+         * @param precision
+         * @return
+         */
+        public Builder precision(TimeUnit precision) {
+            InfluxdbHttp.precisionParam(precision);
+            this.precision = precision;
+            return this;
+        }
+
+        public InfluxdbUdp build() throws IOException {
+            if (host == null) {
+                throw new IllegalArgumentException("Influxdb host can not be null");
+            }
+            if (mtu <= 0 || mtu > 65507) {
+                throw new IllegalArgumentException("mtu must be between 1 and 65507");
+            }
+            return new InfluxdbUdp(this);
+        }
+    }
+
+    @Override
+    public TimeUnit getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public void writeData(SinglePoint singlePoint) throws InfluxdbException {
+        pointWriter.reset();
+        if (singlePoint.writeTo(pointWriter)) {
+            write(pointWriter);
+        }
+    }
+
+    @Override
+    public void write(LineProtocolWriter lines) throws InfluxdbException {
+        byte[] buf = lines.buffer();
+        int end = lines.size();
+        int start = 0;
+        while (start < end) {
+            int lineEnd = start;
+            while (buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd + 1 - start;
+            if (length > packet.capacity()) {
+                pointsDropped.inc();
+            } else {
+                if (length > packet.remaining()) {
+                    sendPacket();
+                }
+                packet.put(buf, start, length);
+            }
+            start = lineEnd + 1;
+        }
+    }
+
+    /**
+     * 发送未满的数据报，之前发送出错时抛出异常
+     *
+     * @throws InfluxdbException
+     */
+    @Override
+    public void flush() throws InfluxdbException {
+        sendPacket();
+        if (lastError != null) {
+            IOException e = lastError;
+            lastError = null;
+            throw new InfluxdbException("Can not send udp packet to remote Influxdb. " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("packets.sent", packetsSent);
+        metrics.put("bytes.sent", bytesSent);
+        metrics.put("packets.dropped", packetsDropped);
+        metrics.put("points.dropped", pointsDropped);
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void sendPacket() {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        try {
+            int sent = channel.write(packet);
+            if (sent == 0) {
+                packetsDropped.inc();
+            } else {
+                packetsSent.inc();
+                bytesSent.inc(sent);
+            }
+        } catch (IOException e) {
+            packetsDropped.inc();
+            lastError = e;
+        } finally {
+            packet.clear();
+        }
+    }
+}
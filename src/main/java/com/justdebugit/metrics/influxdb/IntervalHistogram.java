@@ -0,0 +1,42 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Histogram;
+
+/**
+ * 按上报区间统计数值分布的 {@link Histogram}，见 {@link IntervalTimer}
+ * <p>
+ * 记录非负整数，负数按0计;count为累计值，其余统计值只包含上次上报以来记录的数值
+ *
+ * @author justdebugit
+ */
+public class IntervalHistogram extends Histogram {
+    private final IntervalRecorder recorder;
+
+    /**
+     * 最大记录 Integer.MAX_VALUE
+     */
+    public IntervalHistogram() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param highestTrackableValue 最大可记录值，更大的值按该值计
+     */
+    public IntervalHistogram(long highestTrackableValue) {
+        this(new IntervalRecorder(highestTrackableValue, 1));
+    }
+
+    private IntervalHistogram(IntervalRecorder recorder) {
+        super(recorder);
+        this.recorder = recorder;
+    }
+
+    /**
+     * 取出上次调用以来记录的数值并重新开始统计，由 {@link InfluxdbReporter} 每个周期调用
+     *
+     * @return
+     */
+    public IntervalSnapshot intervalSnapshot() {
+        return recorder.swap();
+    }
+}
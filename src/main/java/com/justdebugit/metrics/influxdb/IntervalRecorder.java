@@ -0,0 +1,199 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HdrHistogram 式的区间记录器，作为 {@link IntervalTimer}、{@link IntervalHistogram} 的 {@link Reservoir}
+ * <p>
+ * 数值按对数-线性分桶计数:小于128的值每个值一个桶，之后每个2的幂区间分64个桶，相对误差不超过1/64，
+ * 内存只与最大可记录值有关，与记录次数无关。
+ * <p>
+ * 两组计数交替使用，{@link #swap()} 时切换并等待正在写入旧计数的线程结束(同 HdrHistogram 的 WriterReaderPhaser)，
+ * 取出的是上次 swap 之后记录的全部数值。记录无锁，swap 只允许上报线程调用
+ *
+ * @author justdebugit
+ */
+class IntervalRecorder implements Reservoir {
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private final long highestTrackableValue;
+    private final long unitScale;
+
+    private volatile AtomicIntegerArray active;
+    private AtomicIntegerArray inactive;
+    private volatile IntervalSnapshot last = IntervalSnapshot.EMPTY;
+
+    private final AtomicLong startEpoch = new AtomicLong(0);
+    private final AtomicLong evenEndEpoch = new AtomicLong(0);
+    private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param highestTrackableValue 最大可记录值，更大的值计入最后一个桶
+     * @param unitScale             记录前数值除以unitScale，输出时再乘回，用于降低精度以减少桶数
+     */
+    IntervalRecorder(long highestTrackableValue, long unitScale) {
+        if (highestTrackableValue < 1 || unitScale < 1) {
+            throw new IllegalArgumentException("highestTrackableValue and unitScale must be positive");
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.unitScale = unitScale;
+        int length = index(highestTrackableValue) + 1;
+        this.active = new AtomicIntegerArray(length);
+        this.inactive = new AtomicIntegerArray(length);
+    }
+
+    @Override
+    public void update(long value) {
+        long v = value / unitScale;
+        if (v < 0) {
+            v = 0;
+        } else if (v > highestTrackableValue) {
+            v = highestTrackableValue;
+        }
+        int bucket = index(v);
+        long critical = startEpoch.getAndIncrement();
+        try {
+            active.incrementAndGet(bucket);
+        } finally {
+            if (critical < 0) {
+                oddEndEpoch.incrementAndGet();
+            } else {
+                evenEndEpoch.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 取出上次调用以来记录的数值并重新开始计数
+     *
+     * @return
+     */
+    synchronized IntervalSnapshot swap() {
+        AtomicIntegerArray counts = active;
+        clear(inactive);
+        active = inactive;
+        flipPhase();
+        inactive = counts;
+        IntervalSnapshot snapshot = summarize(counts);
+        last = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * 上一个区间的记录数
+     */
+    @Override
+    public int size() {
+        return last.size();
+    }
+
+    /**
+     * 上一个区间(最近一次 {@link #swap()} 取出)的统计，不会重置计数
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        return last;
+    }
+
+    /**
+     * 等待swap之前开始的写入全部完成，之后旧计数不再被修改
+     */
+    private void flipPhase() {
+        boolean nextPhaseIsEven = startEpoch.get() < 0;
+        long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+        (nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+        long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+        AtomicLong endEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+        while (endEpoch.get() != startValueAtFlip) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * 一次遍历计算count,min,max,mean,stddev及各分位值，不需要排序
+     */
+    private IntervalSnapshot summarize(AtomicIntegerArray counts) {
+        int length = counts.length();
+        long total = 0;
+        for (int i = 0; i < length; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return IntervalSnapshot.EMPTY;
+        }
+        double[] quantiles = IntervalSnapshot.QUANTILES;
+        long[] values = new long[quantiles.length];
+        long[] ranks = new long[quantiles.length];
+        for (int q = 0; q < quantiles.length; q++) {
+            ranks[q] = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+        }
+        long min = -1;
+        long max = 0;
+        double sum = 0;
+        double sumOfSquares = 0;
+        long seen = 0;
+        int q = 0;
+        for (int i = 0; i < length; i++) {
+            int c = counts.get(i);
+            if (c == 0) {
+                continue;
+            }
+            if (min < 0) {
+                min = lowestEquivalentValue(i);
+            }
+            max = highestEquivalentValue(i);
+            double median = medianEquivalentValue(i);
+            sum += median * c;
+            sumOfSquares += median * median * c;
+            seen += c;
+            while (q < ranks.length && seen >= ranks[q]) {
+                values[q++] = max * unitScale;
+            }
+        }
+        double mean = sum / total;
+        double variance = total > 1 ? Math.max(0, (sumOfSquares - sum * mean) / (total - 1)) : 0;
+        return new IntervalSnapshot(total, min * unitScale, max * unitScale, mean * unitScale,
+                Math.sqrt(variance) * unitScale, values);
+    }
+
+    private static void clear(AtomicIntegerArray counts) {
+        for (int i = 0, length = counts.length(); i < length; i++) {
+            counts.lazySet(i, 0);
+        }
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long lowestEquivalentValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return sub << shift;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        return lowestEquivalentValue(index) + (1L << shift) - 1;
+    }
+
+    private static double medianEquivalentValue(int index) {
+        return (lowestEquivalentValue(index) + highestEquivalentValue(index)) / 2.0;
+    }
+}
@@ -0,0 +1,113 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+/**
+ * 一个上报区间内记录数值的统计结果，由 {@link IntervalRecorder} 在swap时一次计算好
+ * <p>
+ * 只保留固定的几个分位值(p50,p75,p95,p98,p99,p999)，{@link #getValue(double)} 返回不小于该分位的最近一个预计算值
+ *
+ * @author justdebugit
+ */
+public final class IntervalSnapshot extends Snapshot {
+    static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    static final IntervalSnapshot EMPTY = new IntervalSnapshot(0, 0, 0, 0, 0, new long[QUANTILES.length]);
+
+    private final long count;
+    private final long min;
+    private final long max;
+    private final double mean;
+    private final double stdDev;
+    private final long[] quantileValues;
+
+    IntervalSnapshot(long count, long min, long max, double mean, double stdDev, long[] quantileValues) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.stdDev = stdDev;
+        this.quantileValues = quantileValues;
+    }
+
+    /**
+     * 区间内的记录数
+     *
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (quantile == 0.0) {
+            return min;
+        }
+        for (int i = 0; i < QUANTILES.length; i++) {
+            if (quantile <= QUANTILES[i]) {
+                return quantileValues[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 预计算的min、各分位值及max
+     */
+    @Override
+    public long[] getValues() {
+        if (count == 0) {
+            return new long[0];
+        }
+        long[] values = new long[QUANTILES.length + 2];
+        values[0] = min;
+        System.arraycopy(quantileValues, 0, values, 1, quantileValues.length);
+        values[values.length - 1] = max;
+        return values;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public double getMean() {
+        return mean;
+    }
+
+    @Override
+    public long getMin() {
+        return min;
+    }
+
+    @Override
+    public double getStdDev() {
+        return stdDev;
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")))) {
+            for (long value : getValues()) {
+                out.printf("%d%n", value);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按上报区间统计耗时分布的 {@link Timer}
+ * <p>
+ * metrics-core默认的 {@link Timer} 使用指数衰减采样(1028个样本)，每次 getSnapshot 都要复制排序，p99混合了前几分钟的数据;
+ * 本类记录到 {@link IntervalRecorder}，{@link InfluxdbReporter} 每个周期取出上次上报以来的全部耗时，
+ * 输出该区间的min/max/mean/p50/p75/p95/p99/p999。count及rate与 {@link Timer} 相同，为累计值
+ * <p>
+ * 同一个实例只应被一个 {@link InfluxdbReporter} 上报，{@link #getSnapshot()} 返回最近一次上报的区间
+ * <pre>
+ * Timer timer = registry.register("[rpc].latency", new IntervalTimer());
+ * </pre>
+ *
+ * @author justdebugit
+ */
+public class IntervalTimer extends Timer {
+    private final IntervalRecorder recorder;
+
+    /**
+     * 微秒精度，最大记录1小时
+     */
+    public IntervalTimer() {
+        this(TimeUnit.HOURS.toNanos(1), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param highestTrackableNanos 最大可记录的耗时(纳秒)，更大的值按该值计
+     * @param resolution            记录精度，精度越低桶数越少，如 MICROSECONDS
+     */
+    public IntervalTimer(long highestTrackableNanos, TimeUnit resolution) {
+        this(new IntervalRecorder(highestTrackableNanos / resolution.toNanos(1), resolution.toNanos(1)), Clock.defaultClock());
+    }
+
+    private IntervalTimer(IntervalRecorder recorder, Clock clock) {
+        super(recorder, clock);
+        this.recorder = recorder;
+    }
+
+    /**
+     * 取出上次调用以来记录的耗时(纳秒)并重新开始统计，由 {@link InfluxdbReporter} 每个周期调用
+     *
+     * @return
+     */
+    public IntervalSnapshot intervalSnapshot() {
+        return recorder.swap();
+    }
+}
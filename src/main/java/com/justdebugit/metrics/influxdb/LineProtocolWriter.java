@@ -0,0 +1,544 @@
+package com.justdebugit.metrics.influxdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * influxdb line protocol 编码器，measurement、tag、field、timestamp直接写入可复用的字节缓冲，
+ * 不再为每个point创建Map、String等中间对象
+ * <p>
+ * 一个writer可以连续写入多行，写一行的顺序为：
+ * {@link #measurement(String)} -&gt; {@link #tag(String, String)}* -&gt; field* -&gt; {@link #endLine(long)}
+ * <p>
+ * 默认格式与原先一致:整数不带i后缀(influxdb按浮点数保存)，浮点数保留两位小数;
+ * compact格式下整数带i后缀，浮点数输出能精确还原的最短十进制形式且不带多余的0，见 {@link #LineProtocolWriter(boolean)}
+ * <p>
+ * 非线程安全
+ *
+ * @author justdebugit
+ * @see https://influxdb.com/docs/v0.9/write_protocols/write_syntax.html
+ */
+public final class LineProtocolWriter {
+    static final Charset UTF_8 = Charset.forName("utf-8");
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_DECIMALS = 2;//与原先 String.format("%.2f") 保持一致
+    private static final double MAX_FIXED_DOUBLE = 1e15;//超过该值直接使用Double.toString,避免long溢出
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+
+    private byte[] buf;
+    private int size;
+    private int lines;
+
+    private int lineStart = -1;//当前行起始位置，-1表示没有正在写的行
+    private int fieldCount;//当前行已写入的field数
+    private final boolean compact;
+    private StringBuilder doubleChars;//compact格式下格式化double时复用
+
+    public LineProtocolWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LineProtocolWriter(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param compact 为true时整数以原生integer类型(i后缀)写入，浮点数写为最短的可精确还原的十进制形式。
+     *                同一field已按浮点数写入过的influxdb中改为integer会产生类型冲突，只应用于新的measurement或数据库
+     */
+    public LineProtocolWriter(boolean compact) {
+        this(DEFAULT_CAPACITY, compact);
+    }
+
+    public LineProtocolWriter(int capacity, boolean compact) {
+        this.buf = new byte[Math.max(capacity, 16)];
+        this.compact = compact;
+    }
+
+    /**
+     * 开始新的一行
+     *
+     * @param measurement
+     * @return
+     */
+    public LineProtocolWriter measurement(String measurement) {
+        if (lineStart >= 0) {
+            abortLine();
+        }
+        lineStart = size;
+        fieldCount = 0;
+        writeEscaped(measurement, false);
+        return this;
+    }
+
+    /**
+     * 以预先编码好的measurement及tag开始新的一行，见 {@link #encodeSeriesKey(String, Map)}
+     *
+     * @param seriesKey
+     * @return
+     */
+    LineProtocolWriter series(byte[] seriesKey) {
+        if (lineStart >= 0) {
+            abortLine();
+        }
+        lineStart = size;
+        fieldCount = 0;
+        writeRaw(seriesKey, 0, seriesKey.length);
+        return this;
+    }
+
+    /**
+     * 必须在任何field之前调用,key或value为空的tag会被忽略(influxdb不接受空tag)
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public LineProtocolWriter tag(String key, String value) {
+        if (key == null || key.isEmpty() || value == null || value.isEmpty()) {
+            return this;
+        }
+        ensure(key.length() + value.length() + 2);
+        buf[size++] = ',';
+        writeEscaped(key, true);
+        buf[size++] = '=';
+        writeEscaped(value, true);
+        return this;
+    }
+
+    public LineProtocolWriter field(String key, long value) {
+        return field(null, key, value);
+    }
+
+    public LineProtocolWriter field(String key, double value) {
+        return field(null, key, value);
+    }
+
+    /**
+     * field名称为 prefix + key,省去字符串拼接
+     *
+     * @param prefix 可以为null
+     * @param key
+     * @param value
+     * @return
+     */
+    public LineProtocolWriter field(String prefix, String key, long value) {
+        fieldKey(prefix, key);
+        writeLongField(value);
+        return this;
+    }
+
+    /**
+     * NaN和Infinity会被忽略，influxdb无法解析
+     *
+     * @param prefix 可以为null
+     * @param key
+     * @param value
+     * @return
+     */
+    public LineProtocolWriter field(String prefix, String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        fieldKey(prefix, key);
+        writeDoubleField(value);
+        return this;
+    }
+
+    /**
+     * 只接受 {@link Number},其他类型的值会被忽略
+     *
+     * @param prefix 可以为null
+     * @param key
+     * @param value
+     * @return
+     */
+    public LineProtocolWriter field(String prefix, String key, Object value) {
+        if (!(value instanceof Number)) {
+            return this;
+        }
+        if (isIntegral(value)) {
+            return field(prefix, key, ((Number) value).longValue());
+        }
+        return field(prefix, key, ((Number) value).doubleValue());
+    }
+
+    /**
+     * 以预先编码好的field名称写入，见 {@link #encodeFieldKey(String, String)}
+     *
+     * @param encodedKey
+     * @param value
+     * @return
+     */
+    LineProtocolWriter field(byte[] encodedKey, long value) {
+        fieldKey(encodedKey);
+        writeLongField(value);
+        return this;
+    }
+
+    LineProtocolWriter field(byte[] encodedKey, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        fieldKey(encodedKey);
+        writeDoubleField(value);
+        return this;
+    }
+
+    LineProtocolWriter field(byte[] encodedKey, Object value) {
+        if (!(value instanceof Number)) {
+            return this;
+        }
+        if (isIntegral(value)) {
+            return field(encodedKey, ((Number) value).longValue());
+        }
+        return field(encodedKey, ((Number) value).doubleValue());
+    }
+
+    /**
+     * 结束当前行，没有field的行会被丢弃
+     *
+     * @param timestamp
+     * @return 是否成功写入一行
+     */
+    public boolean endLine(long timestamp) {
+        if (lineStart < 0) {
+            return false;
+        }
+        if (fieldCount == 0) {
+            abortLine();
+            return false;
+        }
+        ensure(22);
+        buf[size++] = ' ';
+        writeLong(timestamp);
+        buf[size++] = '\n';
+        lineStart = -1;
+        lines++;
+        return true;
+    }
+
+    /**
+     * 丢弃正在写的行
+     */
+    public void abortLine() {
+        if (lineStart >= 0) {
+            size = lineStart;
+            lineStart = -1;
+        }
+    }
+
+    /**
+     * 追加另一个writer中已完成的行
+     *
+     * @param other
+     */
+    public void append(LineProtocolWriter other) {
+        int len = other.size();
+        writeRaw(other.buf, 0, len);
+        lines += other.lines;
+    }
+
+    /**
+     * 从src当前位置读取len字节已编码的行追加到末尾
+     *
+     * @param src
+     * @param len
+     * @param lineCount 这些字节包含的完整行数
+     */
+    void appendLines(ByteBuffer src, int len, int lineCount) {
+        ensure(len);
+        src.get(buf, size, len);
+        size += len;
+        lines += lineCount;
+    }
+
+    /**
+     * 追加一个已编码的完整行(包含结尾的换行符)
+     *
+     * @param src
+     * @param off
+     * @param len
+     */
+    void appendLine(byte[] src, int off, int len) {
+        writeRaw(src, off, len);
+        lines++;
+    }
+
+    /**
+     * 移除开头len字节的完整行，之后的数据前移
+     *
+     * @param len
+     * @param lineCount 这些字节包含的完整行数
+     */
+    void removeFirst(int len, int lineCount) {
+        System.arraycopy(buf, len, buf, 0, size - len);
+        size -= len;
+        lines -= lineCount;
+    }
+
+    public void reset() {
+        size = 0;
+        lines = 0;
+        lineStart = -1;
+    }
+
+    /**
+     * 已完成行的字节数
+     *
+     * @return
+     */
+    public int size() {
+        return lineStart >= 0 ? lineStart : size;
+    }
+
+    /**
+     * 已完成的行数
+     *
+     * @return
+     */
+    public int lines() {
+        return lines;
+    }
+
+    /**
+     * 底层缓冲，有效数据为 [0, {@link #size()})
+     *
+     * @return
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size());
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, size(), UTF_8);
+    }
+
+    /**
+     * 编码measurement及按key排序后的tag，结果可直接用于 {@link #series(byte[])}
+     *
+     * @param measurement
+     * @param tags
+     * @return
+     */
+    static byte[] encodeSeriesKey(String measurement, Map<String, String> tags) {
+        LineProtocolWriter writer = new LineProtocolWriter(64);
+        writer.measurement(measurement);
+        for (Map.Entry<String, String> tag : new TreeMap<>(tags).entrySet()) {
+            writer.tag(tag.getKey(), tag.getValue());
+        }
+        return Arrays.copyOf(writer.buf, writer.size);
+    }
+
+    /**
+     * 编码field名称(prefix + key)及其后的'='
+     *
+     * @param prefix 可以为null
+     * @param key
+     * @return
+     */
+    static byte[] encodeFieldKey(String prefix, String key) {
+        LineProtocolWriter writer = new LineProtocolWriter(64);
+        if (prefix != null) {
+            writer.writeEscaped(prefix, true);
+        }
+        writer.writeEscaped(key, true);
+        writer.ensure(1);
+        writer.buf[writer.size++] = '=';
+        return Arrays.copyOf(writer.buf, writer.size);
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private void fieldKey(byte[] encodedKey) {
+        ensure(1 + encodedKey.length);
+        buf[size++] = (byte) (fieldCount++ == 0 ? ' ' : ',');
+        System.arraycopy(encodedKey, 0, buf, size, encodedKey.length);
+        size += encodedKey.length;
+    }
+
+    private void fieldKey(String prefix, String key) {
+        ensure(2 + (prefix == null ? 0 : prefix.length()) + key.length());
+        buf[size++] = (byte) (fieldCount++ == 0 ? ' ' : ',');
+        if (prefix != null) {
+            writeEscaped(prefix, true);
+        }
+        writeEscaped(key, true);
+        buf[size++] = '=';
+    }
+
+    private void writeRaw(byte[] data, int off, int len) {
+        ensure(len);
+        System.arraycopy(data, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * measurement需转义逗号和空格，tag key/value及field key还需转义等号
+     */
+    private void writeEscaped(String s, boolean escapeEquals) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c == ',' || c == ' ' || (escapeEquals && c == '=')) {
+                    ensure(len - i + 1);
+                    buf[size++] = '\\';
+                }
+                buf[size++] = (byte) c;
+            } else {
+                ensure(len - i + 3);
+                if (c < 0x800) {
+                    buf[size++] = (byte) (0xc0 | (c >> 6));
+                    buf[size++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[size++] = (byte) (0xf0 | (cp >> 18));
+                    buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[size++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buf[size++] = '?';
+                } else {
+                    buf[size++] = (byte) (0xe0 | (c >> 12));
+                    buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[size++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    private void writeLong(long v) {
+        ensure(20);
+        if (v == Long.MIN_VALUE) {
+            System.arraycopy(MIN_LONG, 0, buf, size, MIN_LONG.length);
+            size += MIN_LONG.length;
+            return;
+        }
+        if (v < 0) {
+            buf[size++] = '-';
+            v = -v;
+        }
+        writePositiveLong(v, 1);
+    }
+
+    private void writeLongField(long v) {
+        writeLong(v);
+        if (compact) {
+            ensure(1);
+            buf[size++] = 'i';
+        }
+    }
+
+    private void writeDoubleField(double v) {
+        if (compact) {
+            writeShortestDouble(v);
+        } else {
+            writeDouble(v, DEFAULT_DECIMALS);
+        }
+    }
+
+    /**
+     * {@link StringBuilder#append(double)} 输出能精确还原的十进制形式(与 {@link Double#toString(double)} 相同，不创建String)，
+     * 再去掉尾部的".0"，如 2.0 -&gt; 2，1.0E-5 -&gt; 1E-5;不做舍入，0.1 + 0.2 写出 0.30000000000000004
+     */
+    private void writeShortestDouble(double v) {
+        if (doubleChars == null) {
+            doubleChars = new StringBuilder(32);
+        }
+        StringBuilder chars = doubleChars;
+        chars.setLength(0);
+        chars.append(v);
+        int mantissaEnd = mantissaEnd(chars);
+        int len = chars.length();
+        int skipFrom = mantissaEnd;
+        if (mantissaEnd >= 2 && chars.charAt(mantissaEnd - 1) == '0' && chars.charAt(mantissaEnd - 2) == '.') {
+            skipFrom = mantissaEnd - 2;
+        }
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            if (i < skipFrom || i >= mantissaEnd) {
+                buf[size++] = (byte) chars.charAt(i);
+            }
+        }
+    }
+
+    private static int mantissaEnd(StringBuilder chars) {
+        int len = chars.length();
+        for (int i = 0; i < len; i++) {
+            if (chars.charAt(i) == 'E') {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * 写入非负整数，不足 minDigits 位时左侧补0
+     */
+    private void writePositiveLong(long v, int minDigits) {
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        ensure(digits);
+        int pos = size + digits;
+        for (int i = 0; i < digits; i++) {
+            buf[--pos] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * 定点格式输出double，四舍五入保留decimals位小数
+     */
+    private void writeDouble(double v, int decimals) {
+        double abs = Math.abs(v);
+        if (abs >= MAX_FIXED_DOUBLE) {
+            writeAscii(Double.toString(v));
+            return;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(abs * scale);
+        ensure(24);
+        if (v < 0 && scaled != 0) {
+            buf[size++] = '-';
+        }
+        writePositiveLong(scaled / scale, 1);
+        if (decimals > 0) {
+            buf[size++] = '.';
+            writePositiveLong(scaled % scale, decimals);
+        }
+    }
+
+    private void writeAscii(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buf[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + extra));
+        }
+    }
+}
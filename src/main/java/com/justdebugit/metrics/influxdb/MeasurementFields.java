@@ -1,10 +1,6 @@
 package com.justdebugit.metrics.influxdb;
 
 import com.codahale.metrics.*;
-import org.apache.commons.lang3.StringUtils;
-
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * User: fangjh@gmail.com
@@ -12,97 +8,189 @@ import java.util.Map;
  * Time: 21:16
  */
 abstract class MeasurementFields<T extends Metric> {
-    public Map<String, Object> getFields(T metric, ReporterDelegate delegate) {
-        return getFields("", metric, delegate);
+    private final String[] fieldNames;
+
+    /**
+     * @param fieldNames 写入的field，writeFields中的keys与之一一对应;
+     *                   p95、p999只有 {@link IntervalTimer}、{@link IntervalHistogram} 写出;
+     *                   gauge的min、max、mean、last只在开启汇总采样(见 {@link GaugeRollup})时写出，value为最后一次采样值;
+     *                   age只有异步刷新的gauge(见 {@link GaugeRefresher})写出
+     */
+    private MeasurementFields(String... fieldNames) {
+        this.fieldNames = fieldNames;
     }
 
-    public Map<String, Object> getFields(Map<String, T> metrics, ReporterDelegate delegate) {
-        Map<String, Object> fieldMap = new HashMap<>(metrics.size() * 10);
-        for (Map.Entry<String, T> metric : metrics.entrySet()) {
-            String prefix = InfluxdbMetrics.resolveMeasurementFieldPrefix(metric.getKey());
-            if (StringUtils.isNotEmpty(prefix)) {
-                prefix += "_";
-            }
-            fieldMap.putAll(getFields(prefix.toLowerCase(), metric.getValue(), delegate));
+    /**
+     * 编码 prefix + fieldName，结果缓存在 {@link SeriesTemplates} 中
+     *
+     * @param prefix
+     * @return
+     */
+    byte[][] encodeFieldKeys(String prefix) {
+        byte[][] keys = new byte[fieldNames.length][];
+        for (int i = 0; i < fieldNames.length; i++) {
+            keys[i] = LineProtocolWriter.encodeFieldKey(prefix, fieldNames[i]);
+        }
+        return keys;
+    }
+
+    /**
+     * 写入metric的各个field
+     *
+     * @return 用于判断metric是否变化的特征值:计数类metric为count，gauge为其值
+     */
+    protected abstract long writeFields(byte[][] keys, T metric, ReporterDelegate delegate, LineProtocolWriter writer);
+
+    private static long signature(Object value) {
+        if (!(value instanceof Number)) {
+            return 0;
         }
-        return fieldMap;
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        return Double.doubleToLongBits(((Number) value).doubleValue());
     }
 
-    protected abstract Map<String, Object> getFields(String prefix, T metric, ReporterDelegate delegate);
+    /**
+     * 把一个field值合入特征值，各步都经过完整的64位混合(murmur3 fmix64)，
+     * 避免线性组合时不同的值组合得到相同结果
+     */
+    private static long mix(long h, double value) {
+        h ^= Double.doubleToLongBits(value);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
 
-    static final MeasurementFields<Timer> TIMER = new MeasurementFields<Timer>() {
+    static final MeasurementFields<Timer> TIMER = new MeasurementFields<Timer>(
+            "count", "mean_rate", "m1_rate", "max", "mean", "min", "p50", "p75", "p99", "p95", "p999") {
         @Override
-        protected Map<String, Object> getFields(String prefix, Timer metric, ReporterDelegate delegate) {
+        protected long writeFields(byte[][] keys, Timer metric, ReporterDelegate delegate, LineProtocolWriter writer) {
+            final long count = metric.getCount();
+            writer.field(keys[0], count);
+            writer.field(keys[1], delegate.convertRate(metric.getMeanRate()));
+            writer.field(keys[2], delegate.convertRate(metric.getOneMinuteRate()));
+//            m5_rate: delegate.convertRate(metric.getFiveMinuteRate())
+//            m15_rate: delegate.convertRate(metric.getFifteenMinuteRate())
+            if (metric instanceof IntervalTimer) {
+                IntervalSnapshot interval = ((IntervalTimer) metric).intervalSnapshot();
+                if (interval.getCount() > 0) {
+                    writer.field(keys[3], delegate.convertDuration(interval.getMax()));
+                    writer.field(keys[4], delegate.convertDuration(interval.getMean()));
+                    writer.field(keys[5], delegate.convertDuration(interval.getMin()));
+                    writer.field(keys[6], delegate.convertDuration(interval.getMedian()));
+                    writer.field(keys[7], delegate.convertDuration(interval.get75thPercentile()));
+                    writer.field(keys[8], delegate.convertDuration(interval.get99thPercentile()));
+                    writer.field(keys[9], delegate.convertDuration(interval.get95thPercentile()));
+                    writer.field(keys[10], delegate.convertDuration(interval.get999thPercentile()));
+                }
+                return count;
+            }
+
             final Snapshot snapshot = metric.getSnapshot();
-            Map<String, Object> fieldMap = new HashMap<String, Object>();
-            fieldMap.put(prefix + "count", metric.getCount());
-            fieldMap.put(prefix + "mean_rate", delegate.convertRate(metric.getMeanRate()));
-            fieldMap.put(prefix + "m1_rate", delegate.convertRate(metric.getOneMinuteRate()));
-//        fieldMap.put("m5_rate", convertRate(timer.getFiveMinuteRate()));
-//        fieldMap.put("m15_rate", convertRate(timer.getFifteenMinuteRate()));
-
-            fieldMap.put(prefix + "max", delegate.convertDuration(snapshot.getMax()));
-            fieldMap.put(prefix + "mean", delegate.convertDuration(snapshot.getMean()));
-            fieldMap.put(prefix + "min", delegate.convertDuration(snapshot.getMin()));
-//        fieldMap.put("stddev", convertDuration(snapshot.getStdDev()));
-            fieldMap.put(prefix + "p50", delegate.convertDuration(snapshot.getMedian()));
-            fieldMap.put(prefix + "p75", delegate.convertDuration(snapshot.get75thPercentile()));
-//        fieldMap.put("p95", convertDuration(snapshot.get95thPercentile()));
-            fieldMap.put(prefix + "p99", delegate.convertDuration(snapshot.get99thPercentile()));
-//        fieldMap.put("p999", convertDuration(snapshot.get999thPercentile()));
-
-            return fieldMap;
+
+            writer.field(keys[3], delegate.convertDuration(snapshot.getMax()));
+            writer.field(keys[4], delegate.convertDuration(snapshot.getMean()));
+            writer.field(keys[5], delegate.convertDuration(snapshot.getMin()));
+//            stddev: delegate.convertDuration(snapshot.getStdDev())
+            writer.field(keys[6], delegate.convertDuration(snapshot.getMedian()));
+            writer.field(keys[7], delegate.convertDuration(snapshot.get75thPercentile()));
+//            p95: delegate.convertDuration(snapshot.get95thPercentile())
+            writer.field(keys[8], delegate.convertDuration(snapshot.get99thPercentile()));
+//            p999: delegate.convertDuration(snapshot.get999thPercentile())
+            return count;
         }
     };
 
-    static final MeasurementFields<Meter> METER = new MeasurementFields<Meter>() {
+    static final MeasurementFields<Meter> METER = new MeasurementFields<Meter>("count", "m1_rate", "mean_rate") {
         @Override
-        protected Map<String, Object> getFields(String prefix, Meter metric, ReporterDelegate delegate) {
-            Map<String, Object> fieldMap = new HashMap<String, Object>();
-            fieldMap.put(prefix + "count", metric.getCount());
-            fieldMap.put(prefix + "m1_rate", delegate.convertRate(metric.getOneMinuteRate()));
-//        fieldMap.put("m5_rate", convertRate(meter.getFiveMinuteRate()));
-//        fieldMap.put("m15_rate", convertRate(meter.getFifteenMinuteRate()));
-            fieldMap.put(prefix + "mean_rate", delegate.convertRate(metric.getMeanRate()));
-            return fieldMap;
+        protected long writeFields(byte[][] keys, Meter metric, ReporterDelegate delegate, LineProtocolWriter writer) {
+            final long count = metric.getCount();
+            writer.field(keys[0], count);
+            writer.field(keys[1], delegate.convertRate(metric.getOneMinuteRate()));
+//            m5_rate: delegate.convertRate(metric.getFiveMinuteRate())
+//            m15_rate: delegate.convertRate(metric.getFifteenMinuteRate())
+            writer.field(keys[2], delegate.convertRate(metric.getMeanRate()));
+            return count;
         }
     };
 
-    static final MeasurementFields<Histogram> HISTOGRAM = new MeasurementFields<Histogram>() {
+    static final MeasurementFields<Histogram> HISTOGRAM = new MeasurementFields<Histogram>(
+            "count", "max", "mean", "min", "p50", "p75", "p99", "p95", "p999") {
         @Override
-        protected Map<String, Object> getFields(String prefix, Histogram metric, ReporterDelegate delegate) {
+        protected long writeFields(byte[][] keys, Histogram metric, ReporterDelegate delegate, LineProtocolWriter writer) {
+            final long count = metric.getCount();
+            writer.field(keys[0], count);
+            if (metric instanceof IntervalHistogram) {
+                IntervalSnapshot interval = ((IntervalHistogram) metric).intervalSnapshot();
+                if (interval.getCount() > 0) {
+                    writer.field(keys[1], interval.getMax());
+                    writer.field(keys[2], interval.getMean());
+                    writer.field(keys[3], interval.getMin());
+                    writer.field(keys[4], interval.getMedian());
+                    writer.field(keys[5], interval.get75thPercentile());
+                    writer.field(keys[6], interval.get99thPercentile());
+                    writer.field(keys[7], interval.get95thPercentile());
+                    writer.field(keys[8], interval.get999thPercentile());
+                }
+                return count;
+            }
+
             final Snapshot snapshot = metric.getSnapshot();
-            Map<String, Object> fieldMap = new HashMap<String, Object>();
-            fieldMap.put(prefix + "count", metric.getCount());
-            fieldMap.put(prefix + "max", snapshot.getMax());
-            fieldMap.put(prefix + "mean", snapshot.getMean());
-            fieldMap.put(prefix + "min", snapshot.getMin());
-//        fieldMap.put("stddev", snapshot.getStdDev());
-            fieldMap.put(prefix + "p50", snapshot.getMedian());
-            fieldMap.put(prefix + "p75", snapshot.get75thPercentile());
-//        fieldMap.put("p95", snapshot.get95thPercentile());
-//        fieldMap.put("p98", snapshot.get98thPercentile());
-            fieldMap.put(prefix + "p99", snapshot.get99thPercentile());
-//        fieldMap.put("p999", snapshot.get999thPercentile());
-            return fieldMap;
+            writer.field(keys[1], snapshot.getMax());
+            writer.field(keys[2], snapshot.getMean());
+            writer.field(keys[3], snapshot.getMin());
+//            stddev: snapshot.getStdDev()
+            writer.field(keys[4], snapshot.getMedian());
+            writer.field(keys[5], snapshot.get75thPercentile());
+//            p95: snapshot.get95thPercentile()
+//            p98: snapshot.get98thPercentile()
+            writer.field(keys[6], snapshot.get99thPercentile());
+//            p999: snapshot.get999thPercentile()
+            return count;
         }
     };
 
-    static final MeasurementFields<Gauge> GAUGE = new MeasurementFields<Gauge>() {
+    static final MeasurementFields<Gauge<?>> GAUGE = new MeasurementFields<Gauge<?>>("value", "min", "max", "mean", "last", "age") {
         @Override
-        protected Map<String, Object> getFields(String prefix, Gauge metric, ReporterDelegate delegate) {
-            Map<String, Object> fieldMap = new HashMap<String, Object>();
-            fieldMap.put(prefix + "value", metric.getValue());
-            return fieldMap;
+        protected long writeFields(byte[][] keys, Gauge<?> metric, ReporterDelegate delegate, LineProtocolWriter writer) {
+            if (metric instanceof GaugeRollup && ((GaugeRollup) metric).getWindowCount() > 0) {
+                GaugeRollup rollup = (GaugeRollup) metric;
+                writer.field(keys[0], rollup.getWindowLast());//保留value，已有的查询及看板不受影响
+                writer.field(keys[1], rollup.getWindowMin());
+                writer.field(keys[2], rollup.getWindowMax());
+                writer.field(keys[3], rollup.getWindowMean());
+                writer.field(keys[4], rollup.getWindowLast());
+                long h = mix(0, rollup.getWindowMin());
+                h = mix(h, rollup.getWindowMax());
+                h = mix(h, rollup.getWindowMean());
+                return mix(h, rollup.getWindowLast());
+            }
+            if (metric instanceof GaugeRefresher.RefreshedGauge) {
+                GaugeRefresher.RefreshedGauge refreshed = (GaugeRefresher.RefreshedGauge) metric;
+                if (!refreshed.isLoaded()) {
+                    return 0;
+                }
+                Object value = refreshed.getValue();
+                writer.field(keys[0], value);
+                writer.field(keys[5], refreshed.getAgeMillis());
+                return signature(value);
+            }
+            Object value = metric.getValue();
+            writer.field(keys[0], value);
+            return signature(value);
         }
     };
 
-    static final MeasurementFields<Counter> COUNTER = new MeasurementFields<Counter>() {
+    static final MeasurementFields<Counter> COUNTER = new MeasurementFields<Counter>("count") {
         @Override
-        protected Map<String, Object> getFields(String prefix, Counter metric, ReporterDelegate delegate) {
-            Map<String, Object> fieldMap = new HashMap<String, Object>();
-            fieldMap.put(prefix + "count", metric.getCount());
-            return fieldMap;
+        protected long writeFields(byte[][] keys, Counter metric, ReporterDelegate delegate, LineProtocolWriter writer) {
+            final long count = metric.getCount();
+            writer.field(keys[0], count);
+            return count;
         }
     };
 
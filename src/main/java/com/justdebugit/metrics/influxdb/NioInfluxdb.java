@@ -0,0 +1,864 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于NIO的非阻塞http写入:在少量连接上以HTTP/1.1 pipeline方式同时保持多个未完成的写请求，
+ * 一次flush产生的多个batch大约一个RTT即可全部写完，而不是像 {@link InfluxdbHttp} 那样逐个请求等待应答
+ * <p>
+ * 所有网络读写都在一个IO线程中完成。batch写满或flush时提交给IO线程，分配到未完成请求最少的连接;
+ * 未完成的请求达到 maxInFlight 时提交会等待。flush等待此前提交的请求全部完成，有失败的batch时抛出 {@link InfluxdbException}。
+ * 每个batch完成后回调 {@link Callback}
+ * <p>
+ * 不支持gzip、重试及spool，已写出的请求在连接断开或超时时作为失败处理，不会重发;需要这些功能时使用 {@link InfluxdbHttp}
+ * <p>
+ * 本身是一个 {@link MetricSet}，可查看未完成的请求数、成功及失败的batch数、请求延迟等，如:
+ * <pre>
+ * registry.register("[influxdb.nio]", nioInfluxdb);
+ * </pre>
+ * writeData/write/flush 只能在同一个线程中调用(一般是reporter线程)
+ *
+ * @author justdebugit
+ */
+public class NioInfluxdb implements Influxdb, MetricSet, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NioInfluxdb.class);
+    private static final String PATH_STR = "/write?db=%s&u=%s&p=%s";
+    private static final int BAD_REQUEST_CODE = 400;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_RESPONSE_BYTES = 1024 * 1024;
+    private static final int MAX_ERROR_BODY = 1024;
+    private static final long SELECT_TIMEOUT = 100;
+    private static final long IDLE_TIMEOUT = 30000;//空闲连接最长保留时间
+
+    /**
+     * batch发送完成的回调，不应阻塞:已发出的请求完成时在IO线程中执行;未能提交的batch(已关闭、在途请求过多、等待许可时被中断)
+     * 在调用writeData/write/flush的线程中同步执行，此时IO线程可能已经停止
+     */
+    public interface Callback {
+        /**
+         * @param points batch中的point数
+         * @param error  成功时为null
+         */
+        void onComplete(int points, InfluxdbException error);
+    }
+
+    private final InetSocketAddress address;
+    private final byte[] requestHead;
+    private final int maxBatchPoints;
+    private final int maxBatchBytes;
+    private final int maxInFlight;
+    private final long connectTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final TimeUnit precision;
+    private final Callback callback;
+    private final Semaphore inFlight;//每个未完成的请求占用一个许可
+    private final Selector selector;
+    private final NioConnection[] connections;
+    private final ConcurrentLinkedQueue<Request> submitted = new ConcurrentLinkedQueue<>();//等待IO线程分配连接
+    private final ConcurrentLinkedQueue<LineProtocolWriter> freeBatches = new ConcurrentLinkedQueue<>();//复用发送完的batch
+    private final Thread ioThread;
+    private volatile boolean running = true;
+
+    private final AtomicInteger failedSinceFlush = new AtomicInteger();
+    private volatile String lastError;
+    private final Timer requestLatency = new Timer();//从开始写出到收到应答;可能被多个reporter读取，不用读取即重置的IntervalTimer
+    private final Counter sentBatches = new Counter();
+    private final Counter failedBatches = new Counter();
+    private final Counter sentPoints = new Counter();
+    private final Counter failedPoints = new Counter();
+
+    private LineProtocolWriter current = new LineProtocolWriter();
+
+    private NioInfluxdb(Builder builder) throws IOException {
+        this.address = new InetSocketAddress(builder.host, builder.port);
+        this.maxBatchPoints = builder.maxBatchPoints;
+        this.maxBatchBytes = builder.maxBatchBytes;
+        this.maxInFlight = builder.maxInFlight;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.readTimeoutMillis = builder.readTimeoutMillis;
+        this.precision = builder.precision;
+        this.callback = builder.callback;
+        String path = String.format(PATH_STR, builder.dbName, builder.username, builder.password);
+        if (precision != TimeUnit.NANOSECONDS) {
+            path += "&precision=" + InfluxdbHttp.precisionParam(precision);
+        }
+        this.requestHead = ("POST " + path + " HTTP/1.1\r\n"
+                + "Host: " + InfluxdbHttp.hostHeader(builder.host, builder.port) + "\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Content-Length: ").getBytes(LineProtocolWriter.UTF_8);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.selector = Selector.open();
+        this.connections = new NioConnection[builder.connections];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new NioConnection();
+        }
+        this.ioThread = new Thread(new IoLoop(), "influxdb-nio-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private String host;
+        private int port;
+        private String dbName;
+        private String username;
+        private String password;
+        private int maxBatchPoints;
+        private int maxBatchBytes;
+        private int connections;
+        private int maxInFlight;
+        private long connectTimeoutMillis;
+        private long readTimeoutMillis;
+        private TimeUnit precision;
+        private Callback callback;
+
+        private Builder() {
+            this.port = 8086;
+            this.dbName = "metrics";
+            this.username = "";
+            this.password = "";
+            this.maxBatchPoints = 5000;
+            this.maxBatchBytes = 1024 * 1024;
+            this.connections = 2;
+            this.maxInFlight = 8;
+            this.connectTimeoutMillis = 5000;
+            this.readTimeoutMillis = 10000;
+            this.precision = TimeUnit.NANOSECONDS;
+        }
+
+        /**
+         * dbhost
+         *
+         * @param host
+         * @return
+         */
+        public Builder host(String host) {
+            this.host = host;
+            return this;
+        }
+
+        /**
+         * dbport
+         *
+         * @param port
+         * @return
+         */
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * db名称
+         *
+         * @param dbName
+         * @return
+         */
+        public Builder dbName(String dbName) {
+            this.dbName = dbName;
+            return this;
+        }
+
+        /**
+         * influxdb 用户名，没有可以不填
+         *
+         * @param username
+         * @return
+         */
+        public Builder username(String username) {
+            this.username = username;
+            return this;
+        }
+
+        /**
+         * influxdb 密码，没有可以不填
+         *
+         * @param password
+         * @return
+         */
+        public Builder password(String password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * 单次请求最多包含的point数，默认5000
+         *
+         * @param maxBatchPoints
+         * @return
+         */
+        public Builder maxBatchPoints(int maxBatchPoints) {
+            this.maxBatchPoints = maxBatchPoints;
+            return this;
+        }
+
+        /**
+         * 单次请求body的最大字节数，默认1M，单个point超过该值时单独发送
+         *
+         * @param maxBatchBytes
+         * @return
+         */
+        public Builder maxBatchBytes(int maxBatchBytes) {
+            this.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        /**
+         * 连接数，默认2
+         *
+         * @param connections
+         * @return
+         */
+        public Builder connections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * 所有连接上最多同时未完成的请求数，默认8
+         *
+         * @param maxInFlight
+         * @return
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * 建立连接的超时时间，默认5秒
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            this.connectTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * 请求写出后等待应答的超时时间，默认10秒
+         *
+         * @param timeout
+         * @param unit
+         * @return
+         */
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            this.readTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * 写入数据的时间戳精度，默认纳秒，见 {@link InfluxdbHttp.Builder#precision(TimeUnit)}
+         *
+         * @param precision
+         * @return
+         */
+        public Builder precision(TimeUnit precision) {
+            InfluxdbHttp.precisionParam(precision);
+            this.precision = precision;
+            return this;
+        }
+
+        /**
+         * 每个batch完成后的回调，默认无;执行线程见 {@link Callback}
+         *
+         * @param callback
+         * @return
+         */
+        public Builder callback(Callback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        public NioInfluxdb build() throws IOException {
+            if (host == null) {
+                throw new IllegalArgumentException("Influxdb host can not be null");
+            }
+            if (maxBatchPoints <= 0 || maxBatchBytes <= 0) {
+                throw new IllegalArgumentException("maxBatchPoints and maxBatchBytes must be positive");
+            }
+            if (connections <= 0 || maxInFlight <= 0) {
+                throw new IllegalArgumentException("connections and maxInFlight must be positive");
+            }
+            if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("connectTimeout and readTimeout must be positive");
+            }
+            return new NioInfluxdb(this);
+        }
+    }
+
+    @Override
+    public void writeData(SinglePoint singlePoint) throws InfluxdbException {
+        if (singlePoint.writeTo(current) && isBatchFull()) {
+            submitCurrent();
+        }
+    }
+
+    @Override
+    public void write(LineProtocolWriter lines) throws InfluxdbException {
+        if (lines.lines() == 0) {
+            return;
+        }
+        if (current.lines() > 0 && (current.lines() + lines.lines() > maxBatchPoints
+                || current.size() + lines.size() > maxBatchBytes)) {
+            submitCurrent();
+        }
+        current.append(lines);
+        if (isBatchFull()) {
+            submitCurrent();
+        }
+    }
+
+    /**
+     * 提交当前batch并等待此前提交的请求全部完成
+     *
+     * @throws InfluxdbException 有batch发送失败或等待超时
+     */
+    @Override
+    public void flush() throws InfluxdbException {
+        submitCurrent();
+        long timeout = connectTimeoutMillis + readTimeoutMillis;
+        try {
+            if (!inFlight.tryAcquire(maxInFlight, timeout, TimeUnit.MILLISECONDS)) {
+                throw new InfluxdbException("Waiting for influxdb responses timed out after " + timeout + "ms");
+            }
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InfluxdbException("Interrupted while waiting for influxdb responses", e);
+        }
+        int failed = failedSinceFlush.getAndSet(0);
+        if (failed > 0) {
+            throw new InfluxdbException(failed + " batches failed to write to influxdb,last error: " + lastError);
+        }
+    }
+
+    @Override
+    public TimeUnit getPrecision() {
+        return precision;
+    }
+
+    /**
+     * 当前未完成的请求数
+     *
+     * @return
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("inflight", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getInFlight();
+            }
+        });
+        metrics.put("request.latency", requestLatency);
+        metrics.put("batches.sent", sentBatches);
+        metrics.put("batches.failed", failedBatches);
+        metrics.put("points.sent", sentPoints);
+        metrics.put("points.failed", failedPoints);
+        return metrics;
+    }
+
+    /**
+     * 停止IO线程，未完成的请求作为失败回调
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(readTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isBatchFull() {
+        return current.lines() >= maxBatchPoints || current.size() >= maxBatchBytes;
+    }
+
+    private void submitCurrent() throws InfluxdbException {
+        if (current.lines() == 0) {
+            return;
+        }
+        LineProtocolWriter batch = current;
+        LineProtocolWriter free = freeBatches.poll();
+        current = free == null ? new LineProtocolWriter() : free;
+        if (!running) {
+            failBatch(batch, "NioInfluxdb has been closed");
+            throw new InfluxdbException("NioInfluxdb has been closed");
+        }
+        try {
+            if (!inFlight.tryAcquire(connectTimeoutMillis + readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                failBatch(batch, "too many requests in flight");
+                throw new InfluxdbException("Waiting for a free influxdb request slot timed out");
+            }
+        } catch (InterruptedException e) {
+            failBatch(batch, "interrupted");
+            Thread.currentThread().interrupt();
+            throw new InfluxdbException("Interrupted while waiting for a free influxdb request slot", e);
+        }
+        submitted.offer(new Request(batch));
+        selector.wakeup();
+    }
+
+    /**
+     * 未能提交的batch，不占用请求许可;回调在当前(写入)线程中执行，见 {@link Callback}
+     */
+    private void failBatch(LineProtocolWriter batch, String reason) {
+        lastError = reason;
+        failedSinceFlush.incrementAndGet();
+        failedBatches.inc();
+        failedPoints.inc(batch.lines());
+        notifyCallback(batch.lines(), new InfluxdbException(reason));
+        batch.reset();
+        freeBatches.offer(batch);
+    }
+
+    private void notifyCallback(int points, InfluxdbException error) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onComplete(points, error);
+        } catch (Exception e) {
+            logger.error("NioInfluxdb callback failed", e);
+        }
+    }
+
+    /**
+     * 请求完成(IO线程中调用)，释放许可并回收batch
+     */
+    private void complete(Request request, InfluxdbException error) {
+        int points = request.batch.lines();
+        if (request.startNanos > 0) {
+            requestLatency.update(System.nanoTime() - request.startNanos, TimeUnit.NANOSECONDS);
+        }
+        if (error == null) {
+            sentBatches.inc();
+            sentPoints.inc(points);
+        } else {
+            lastError = error.getMessage();
+            failedSinceFlush.incrementAndGet();
+            failedBatches.inc();
+            failedPoints.inc(points);
+        }
+        request.batch.reset();
+        freeBatches.offer(request.batch);
+        inFlight.release();
+        notifyCallback(points, error);
+    }
+
+    /**
+     * 一个写请求，body直接从batch缓冲写出
+     */
+    private class Request {
+        private final LineProtocolWriter batch;
+        private final ByteBuffer[] buffers;
+        private long startNanos;
+        private long deadline;//等待应答的截止时间
+        private boolean resubmitted;
+
+        Request(LineProtocolWriter batch) {
+            this.batch = batch;
+            byte[] length = (batch.size() + "\r\n\r\n").getBytes(LineProtocolWriter.UTF_8);
+            this.buffers = new ByteBuffer[]{ByteBuffer.wrap(requestHead), ByteBuffer.wrap(length),
+                    ByteBuffer.wrap(batch.buffer(), 0, batch.size())};
+        }
+
+        boolean isStarted() {
+            return startNanos > 0;
+        }
+
+        boolean isWritten() {
+            return !buffers[buffers.length - 1].hasRemaining();
+        }
+    }
+
+    /**
+     * 一个非阻塞连接，请求按写出顺序排队等待应答(pipeline)，只在IO线程中访问
+     */
+    private class NioConnection {
+        private final ArrayDeque<Request> writing = new ArrayDeque<>();//等待写出
+        private final ArrayDeque<Request> waiting = new ArrayDeque<>();//已写出，等待应答
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long connectDeadline;
+        private long lastUsed;
+        private byte[] in = new byte[BUFFER_SIZE];
+        private int inSize;
+        private boolean closeAfterResponse;
+
+        int outstanding() {
+            return writing.size() + waiting.size();
+        }
+
+        void enqueue(Request request) throws IOException {
+            if (channel == null) {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (channel.connect(address)) {
+                    key = channel.register(selector, 0, this);
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    connectDeadline = System.currentTimeMillis() + connectTimeoutMillis;
+                }
+            }
+            writing.add(request);
+            updateInterest();
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            connectDeadline = 0;
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            Request request;
+            while ((request = writing.peek()) != null) {
+                if (!request.isStarted()) {
+                    request.startNanos = System.nanoTime();
+                }
+                channel.write(request.buffers);
+                if (!request.isWritten()) {
+                    break;//socket发送缓冲已满
+                }
+                writing.poll();
+                request.deadline = System.currentTimeMillis() + readTimeoutMillis;
+                waiting.add(request);
+            }
+            lastUsed = System.currentTimeMillis();
+            updateInterest();
+        }
+
+        void read() throws IOException {
+            int n = channel.read(ByteBuffer.wrap(in, inSize, in.length - inSize));
+            if (n < 0) {
+                throw new EOFException("connection closed by influxdb");
+            }
+            inSize += n;
+            int offset = 0;
+            int consumed;
+            while ((consumed = parseResponse(offset)) > 0) {
+                offset += consumed;
+            }
+            if (offset > 0) {
+                System.arraycopy(in, offset, in, 0, inSize - offset);
+                inSize -= offset;
+            } else if (inSize == in.length) {
+                if (in.length >= MAX_RESPONSE_BYTES) {
+                    throw new IOException("http response too large");
+                }
+                byte[] bigger = new byte[in.length << 1];
+                System.arraycopy(in, 0, bigger, 0, inSize);
+                in = bigger;
+            }
+            lastUsed = System.currentTimeMillis();
+            if (closeAfterResponse && waiting.isEmpty()) {
+                close(null);
+            }
+        }
+
+        /**
+         * 从offset开始解析一个完整的应答，并完成对应的请求
+         *
+         * @return 消耗的字节数，数据不完整时返回0
+         */
+        private int parseResponse(int offset) throws IOException {
+            int headerEnd = indexOf(offset, "\r\n\r\n");
+            if (headerEnd < 0) {
+                return 0;
+            }
+            String[] lines = new String(in, offset, headerEnd - offset, LineProtocolWriter.UTF_8).split("\r\n");
+            int status = parseStatus(lines[0]);
+            long contentLength = -1;
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
+                    closeAfterResponse = true;
+                }
+            }
+            int bodyStart = headerEnd + 4;
+            int end;
+            StringBuilder body = status >= BAD_REQUEST_CODE ? new StringBuilder() : null;
+            if (status == 100 || status == 204 || status == 304) {
+                end = bodyStart;
+            } else if (chunked) {
+                end = parseChunkedBody(bodyStart, body);
+                if (end < 0) {
+                    return 0;
+                }
+            } else {
+                if (contentLength < 0) {
+                    throw new IOException("http response without content length is not supported");
+                }
+                if (inSize - bodyStart < contentLength) {
+                    return 0;
+                }
+                end = bodyStart + (int) contentLength;
+                appendBody(body, bodyStart, end);
+            }
+            if (status != 100) {
+                Request request = waiting.poll();
+                if (request == null) {
+                    throw new IOException("unexpected http response from influxdb");
+                }
+                complete(request, body == null ? null : new InfluxdbException(
+                        "influxdb returned unexpected http code:" + status + ";Reason:" + body));
+            }
+            return end - offset;
+        }
+
+        /**
+         * @return chunked body结束的位置，数据不完整时返回-1
+         */
+        private int parseChunkedBody(int pos, StringBuilder body) throws IOException {
+            while (true) {
+                int lineEnd = indexOf(pos, "\r\n");
+                if (lineEnd < 0) {
+                    return -1;
+                }
+                String sizeLine = new String(in, pos, lineEnd - pos, LineProtocolWriter.UTF_8);
+                int semicolon = sizeLine.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid chunk size: " + sizeLine);
+                }
+                pos = lineEnd + 2;
+                if (size == 0) {
+                    int trailerEnd = indexOf(pos - 2, "\r\n\r\n");//没有trailer时紧跟一个空行
+                    return trailerEnd < 0 ? -1 : trailerEnd + 4;
+                }
+                if (inSize - pos < size + 2) {
+                    return -1;
+                }
+                appendBody(body, pos, pos + size);
+                pos += size + 2;
+            }
+        }
+
+        private void appendBody(StringBuilder body, int from, int to) {
+            if (body != null && body.length() < MAX_ERROR_BODY) {
+                body.append(new String(in, from, Math.min(to - from, MAX_ERROR_BODY - body.length()),
+                        LineProtocolWriter.UTF_8));
+            }
+        }
+
+        private int indexOf(int from, String pattern) {
+            outer:
+            for (int i = from; i <= inSize - pattern.length(); i++) {
+                for (int j = 0; j < pattern.length(); j++) {
+                    if (in[i + j] != pattern.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * 检查连接及应答超时，关闭空闲过久的连接
+         */
+        void checkTimeouts(long now) {
+            if (channel == null) {
+                return;
+            }
+            if (connectDeadline > 0 && now > connectDeadline) {
+                close(new SocketTimeoutException("connect timed out"));
+            } else if (!waiting.isEmpty() && now > waiting.peek().deadline) {
+                close(new SocketTimeoutException("read timed out"));
+            } else if (outstanding() == 0 && now - lastUsed > IDLE_TIMEOUT) {
+                close(null);
+            }
+        }
+
+        /**
+         * 关闭连接。已开始写出的请求作为失败完成;尚未写出的请求重新提交一次(如复用的连接已被服务端关闭)，再次失败时作为失败完成
+         */
+        void close(IOException cause) {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            channel = null;
+            key = null;
+            connectDeadline = 0;
+            inSize = 0;
+            closeAfterResponse = false;
+            String reason = "Can not send Request to remote Influxdb,please ensure influxdb has started. "
+                    + (cause == null ? "connection closed" : cause.getMessage());
+            Request request;
+            while ((request = waiting.poll()) != null) {
+                complete(request, new InfluxdbException(reason, cause));
+            }
+            while ((request = writing.poll()) != null) {
+                if (request.isStarted() || request.resubmitted || !running) {
+                    complete(request, new InfluxdbException(reason, cause));
+                } else {
+                    request.resubmitted = true;
+                    submitted.offer(request);
+                }
+            }
+            if (cause != null) {
+                logger.debug("Influxdb connection closed", cause);
+            }
+        }
+
+        private void updateInterest() {
+            if (key == null) {
+                return;
+            }
+            if (connectDeadline > 0) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | (writing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                conn.finishConnect();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.read();
+                            }
+                        } catch (IOException e) {
+                            conn.close(e);
+                        }
+                    }
+                    assignSubmitted();
+                    long now = System.currentTimeMillis();
+                    for (NioConnection conn : connections) {
+                        conn.checkTimeouts(now);
+                    }
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            IOException closed = new IOException("NioInfluxdb has been closed");
+            for (NioConnection conn : connections) {
+                if (conn.channel != null) {
+                    conn.close(closed);
+                }
+            }
+            Request request;
+            while ((request = submitted.poll()) != null) {
+                complete(request, new InfluxdbException(closed.getMessage()));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        /**
+         * 新提交的请求分配到未完成请求最少的连接
+         */
+        private void assignSubmitted() {
+            Request request;
+            while ((request = submitted.poll()) != null) {
+                NioConnection target = connections[0];
+                for (NioConnection conn : connections) {
+                    if (conn.outstanding() < target.outstanding()) {
+                        target = conn;
+                    }
+                }
+                try {
+                    target.enqueue(request);
+                } catch (IOException e) {
+                    if (target.channel != null) {
+                        target.close(e);
+                    }
+                    complete(request, new InfluxdbException(
+                            "Can not connect to remote Influxdb. " + e.getMessage(), e));
+                }
+            }
+        }
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 204 No Content
+        int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+            throw new IOException("invalid http status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid http status line: " + statusLine);
+        }
+    }
+}
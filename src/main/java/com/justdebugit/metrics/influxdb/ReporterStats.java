@@ -0,0 +1,167 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link InfluxdbReporter} 自身的开销统计，每个周期的值在周期结束时保存，gauge返回最近一个完整周期的值
+ * <p>
+ * 各类metric的耗时包含读取(getSnapshot、getValue等)及编码，并行采集时为各线程耗时之和;
+ * send为写入及flush influxdb的耗时
+ * <p>
+ * 除addTypeNanos(并行采集时由collectPool中的线程调用)外，写入方法只在report线程中调用
+ * ({@link com.codahale.metrics.ScheduledReporter#report()} 在锁内执行，同一时刻只有一个周期);
+ * 保存的上一周期的值通过volatile字段及 {@link AtomicLongArray} 发布给读取gauge的线程
+ *
+ * @author justdebugit
+ */
+class ReporterStats implements MetricSet {
+    static final String[] TYPES = {"gauge", "counter", "histogram", "meter", "timer"};
+
+    private final AtomicLong[] typeNanos = new AtomicLong[TYPES.length];//当前周期，并行采集时多线程累加
+    private final AtomicLongArray lastTypeNanos = new AtomicLongArray(TYPES.length);
+    // 以下为当前周期的累计值，只在report线程中读写
+    private long resolveNanos;
+    private long sendNanos;
+    private long points;
+    private long bytes;
+    private boolean tickFailed;
+    private volatile long lastTickNanos;
+    private volatile long lastResolveNanos;
+    private volatile long lastSendNanos;
+    private volatile long lastPoints;
+    private volatile long lastBytes;
+    private volatile boolean lastFailed;
+    private final Counter failures = new Counter();
+
+    ReporterStats() {
+        for (int i = 0; i < typeNanos.length; i++) {
+            typeNanos[i] = new AtomicLong();
+        }
+    }
+
+    static int typeIndex(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown metric type: " + type);
+    }
+
+    void addTypeNanos(int typeIndex, long nanos) {
+        typeNanos[typeIndex].addAndGet(nanos);
+    }
+
+    void addResolveNanos(long nanos) {
+        resolveNanos += nanos;
+    }
+
+    void addSendNanos(long nanos) {
+        sendNanos += nanos;
+    }
+
+    void addWritten(LineProtocolWriter writer) {
+        points += writer.lines();
+        bytes += writer.size();
+    }
+
+    void failed() {
+        failures.inc();
+        tickFailed = true;
+    }
+
+    /**
+     * 一个周期结束，保存本周期的统计并清零
+     *
+     * @param tickNanos 本周期总耗时
+     */
+    void endTick(long tickNanos) {
+        for (int i = 0; i < typeNanos.length; i++) {
+            lastTypeNanos.set(i, typeNanos[i].getAndSet(0));
+        }
+        lastResolveNanos = resolveNanos;
+        lastSendNanos = sendNanos;
+        lastPoints = points;
+        lastBytes = bytes;
+        lastTickNanos = tickNanos;
+        lastFailed = tickFailed;
+        resolveNanos = sendNanos = points = bytes = 0;
+        tickFailed = false;
+    }
+
+    long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    long getLastSendNanos() {
+        return lastSendNanos;
+    }
+
+    /**
+     * 最近一个周期是否失败
+     *
+     * @return
+     */
+    boolean isLastFailed() {
+        return lastFailed;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("tick.ms", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return toMillis(lastTickNanos);
+            }
+        });
+        metrics.put("resolve.ms", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return toMillis(lastResolveNanos);
+            }
+        });
+        metrics.put("send.ms", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return toMillis(lastSendNanos);
+            }
+        });
+        for (int i = 0; i < TYPES.length; i++) {
+            final int index = i;
+            metrics.put(TYPES[i] + ".ms", new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return toMillis(lastTypeNanos.get(index));
+                }
+            });
+        }
+        metrics.put("points", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lastPoints;
+            }
+        });
+        metrics.put("bytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lastBytes;
+            }
+        });
+        metrics.put("failures", failures);
+        return metrics;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
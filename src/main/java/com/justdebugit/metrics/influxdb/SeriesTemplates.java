@@ -0,0 +1,158 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.MetricRegistryListener;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按metric名称缓存编码好的measurement、tag及field名称，每个周期只需写入数值
+ * <p>
+ * metric名称解析(分组、tag、field前缀)的结果不会变化，只在第一次上报时计算;
+ * 作为 {@link MetricRegistryListener} 注册到registry上，metric被移除时清理对应缓存
+ *
+ * @author justdebugit
+ */
+class SeriesTemplates extends MetricRegistryListener.Base {
+    private final String appName;
+    private final Map<String, String> commonTagMap;
+    private final ConcurrentHashMap<String, MetricTemplate> metrics = new ConcurrentHashMap<>();
+    private final Map<String, MeasurementTemplate> measurements = new HashMap<>();//只在synchronized中访问
+
+    SeriesTemplates(String appName, Map<String, String> commonTagMap) {
+        this.appName = appName;
+        this.commonTagMap = commonTagMap;
+    }
+
+    /**
+     * 获取metric对应的模板，不存在时创建
+     *
+     * @param name   metric名称
+     * @param type   gauge,counter,histogram,meter,timer
+     * @param fields
+     * @return
+     */
+    MetricTemplate get(String name, String type, MeasurementFields<?> fields) {
+        MetricTemplate template = metrics.get(name);
+        if (template == null) {
+            template = create(name, type, fields);
+        }
+        return template;
+    }
+
+    /**
+     * 当前缓存的metric数
+     *
+     * @return
+     */
+    int size() {
+        return metrics.size();
+    }
+
+    /**
+     * 所有分组标记为未写出，发送失败时由report线程调用
+     */
+    synchronized void resetReported() {
+        for (MeasurementTemplate measurement : measurements.values()) {
+            measurement.reported = false;
+        }
+    }
+
+    private synchronized MetricTemplate create(String name, String type, MeasurementFields<?> fields) {
+        MetricTemplate template = metrics.get(name);
+        if (template != null) {
+            return template;
+        }
+        String group = InfluxdbMetrics.resolveMeasurement(name);
+        String measurementKey = type + '\0' + group;
+        MeasurementTemplate measurement = measurements.get(measurementKey);
+        if (measurement == null) {
+            String fullMeasurement = InfluxdbMetrics.makeMeasurementName(appName, group, type);
+            measurement = new MeasurementTemplate(measurementKey,
+                    LineProtocolWriter.encodeSeriesKey(fullMeasurement, assembleTagMap(commonTagMap, group)));
+            measurements.put(measurementKey, measurement);
+        }
+        measurement.refs++;
+
+        String prefix = InfluxdbMetrics.resolveMeasurementFieldPrefix(name);
+        if (StringUtils.isNotEmpty(prefix)) {
+            prefix += "_";
+        }
+        template = new MetricTemplate(measurement, fields.encodeFieldKeys(prefix.toLowerCase()));
+        metrics.put(name, template);
+        return template;
+    }
+
+    private synchronized void remove(String name) {
+        MetricTemplate template = metrics.remove(name);
+        if (template != null && --template.measurement.refs == 0) {
+            measurements.remove(template.measurement.key);
+        }
+    }
+
+    private static Map<String, String> assembleTagMap(Map<String, String> commonTagMap, String metric) {
+        Map<String, String> metricTagMap = InfluxdbMetrics.getTagFromMetricName(metric);
+        if (metricTagMap == null || metricTagMap.isEmpty()) {
+            return commonTagMap;
+        }
+        metricTagMap.putAll(commonTagMap);
+        return metricTagMap;
+    }
+
+    @Override
+    public void onGaugeRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+        remove(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+        remove(name);
+    }
+
+    /**
+     * 同一measurement(分组)下的metric共享measurement及tag
+     */
+    static final class MeasurementTemplate {
+        private final String key;
+        final byte[] seriesKey;//measurement + ',' + 排序后的tag
+        private int refs;
+        // 以下状态只在report线程中读写
+        boolean reported;//是否已写出过
+        int unchangedTicks;//连续未变化而跳过的周期数
+
+        private MeasurementTemplate(String key, byte[] seriesKey) {
+            this.key = key;
+            this.seriesKey = seriesKey;
+        }
+    }
+
+    static final class MetricTemplate {
+        final MeasurementTemplate measurement;
+        final byte[][] fieldKeys;//按 MeasurementFields 中field的顺序编码好的 prefix + name + '='
+        // 以下状态只在report线程中读写
+        boolean reported;
+        long signature;//上次写出时的特征值，见 MeasurementFields#writeFields
+
+        private MetricTemplate(MeasurementTemplate measurement, byte[][] fieldKeys) {
+            this.measurement = measurement;
+            this.fieldKeys = fieldKeys;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把数据分片写入多个独立的influxdb节点
+ * <p>
+ * 按series(measurement + tag)在一致性哈希环上选择节点，同一series总是写入同一节点;每个节点有自己的batch，
+ * flush时各节点并行发送。节点发送失败(网络错误、5xx或熔断)后在 downTime 内被标记为不可用，其数据按哈希环顺延到下一个可用节点，
+ * 之后的周期也直接路由到下一个节点，不再等待该节点超时;downTime 过后重新尝试该节点。
+ * 4xx说明数据本身被拒绝，不转移也不标记节点，直接抛给调用方
+ * <p>
+ * 节点上配置了 {@link InfluxdbSpool} 时，失败的batch在暂存的同时也会被转移到其他节点，恢复后会重复写入(不同节点上各一份)
+ * <p>
+ * writeData/write/flush 只能在同一个线程中调用(一般是reporter线程)
+ * <pre>
+ * ShardedInfluxdb influxdb = ShardedInfluxdb.newBuilder()
+ *         .addNode(InfluxdbHttp.newBuilder().host("influxdb-1").dbName("metrics").build())
+ *         .addNode(InfluxdbHttp.newBuilder().host("influxdb-2").dbName("metrics").build())
+ *         .build();
+ * </pre>
+ *
+ * @author justdebugit
+ */
+public class ShardedInfluxdb implements Influxdb, MetricSet, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedInfluxdb.class);
+
+    private final Node[] nodes;
+    private final long[] ringHashes;//升序排列的虚拟节点哈希值
+    private final int[] ringNodes;//与ringHashes对应的节点下标
+    private final long downTimeMillis;
+    private final ExecutorService flusher;
+    private final LineProtocolWriter pointWriter = new LineProtocolWriter();//writeData(SinglePoint)时使用
+    private final Counter failoverPoints = new Counter();
+
+    private ShardedInfluxdb(Builder builder) {
+        this.downTimeMillis = builder.downTimeMillis;
+        this.nodes = new Node[builder.nodes.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(builder.nodes.get(i));
+        }
+        int virtualNodes = builder.virtualNodes;
+        long[] entries = new long[nodes.length * virtualNodes];
+        Map<Long, Integer> owners = new HashMap<>(entries.length * 2);
+        int count = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                byte[] key = (i + "#" + v).getBytes(LineProtocolWriter.UTF_8);
+                long hash = hash(key, 0, key.length);
+                if (!owners.containsKey(hash)) {//极少出现的冲突，保留先出现的
+                    owners.put(hash, i);
+                    entries[count++] = hash;
+                }
+            }
+        }
+        this.ringHashes = Arrays.copyOf(entries, count);
+        Arrays.sort(ringHashes);
+        this.ringNodes = new int[count];
+        for (int i = 0; i < count; i++) {
+            ringNodes[i] = owners.get(ringHashes[i]);
+        }
+        this.flusher = Executors.newFixedThreadPool(nodes.length, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "influxdb-shard-flusher-" + seq.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<InfluxdbHttp> nodes = new ArrayList<>();
+        private int virtualNodes;
+        private long downTimeMillis;
+
+        private Builder() {
+            this.virtualNodes = 160;
+            this.downTimeMillis = 30000;
+        }
+
+        /**
+         * 添加一个节点，节点的顺序决定哈希环，增减节点只会影响相邻区间的series
+         *
+         * @param node
+         * @return
+         */
+        public Builder addNode(InfluxdbHttp node) {
+            if (node == null) {
+                throw new IllegalArgumentException("node can not be null");
+            }
+            nodes.add(node);
+            return this;
+        }
+
+        /**
+         * 每个节点在哈希环上的虚拟节点数，默认160，越多分布越均匀
+         *
+         * @param virtualNodes
+         * @return
+         */
+        public Builder virtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+            return this;
+        }
+
+        /**
+         * 节点发送失败后被标记为不可用的时间，默认30秒，必须大于0
+         *
+         * @param downTime
+         * @param unit
+         * @return
+         */
+        public Builder downTime(long downTime, TimeUnit unit) {
+            this.downTimeMillis = unit.toMillis(downTime);
+            return this;
+        }
+
+        public ShardedInfluxdb build() {
+            if (nodes.isEmpty()) {
+                throw new IllegalArgumentException("at least one node is required");
+            }
+            if (virtualNodes <= 0 || downTimeMillis <= 0) {
+                throw new IllegalArgumentException("virtualNodes and downTime must be positive");
+            }
+            for (InfluxdbHttp node : nodes) {
+                if (node.getPrecision() != nodes.get(0).getPrecision()) {
+                    throw new IllegalArgumentException("all nodes must use the same precision");
+                }
+            }
+            return new ShardedInfluxdb(this);
+        }
+    }
+
+    /**
+     * 各节点的精度相同，见 {@link Builder#build()}
+     */
+    @Override
+    public TimeUnit getPrecision() {
+        return nodes[0].http.getPrecision();
+    }
+
+    @Override
+    public void writeData(SinglePoint singlePoint) throws InfluxdbException {
+        pointWriter.reset();
+        if (singlePoint.writeTo(pointWriter)) {
+            write(pointWriter);
+        }
+    }
+
+    /**
+     * 逐行路由到各节点的batch，写满的节点立即发送;发送失败时仍把剩余的行路由完，最后抛出遇到的第一个异常
+     */
+    @Override
+    public void write(LineProtocolWriter lines) throws InfluxdbException {
+        InfluxdbException error = null;
+        long now = System.currentTimeMillis();
+        byte[] buf = lines.buffer();
+        int end = lines.size();
+        int start = 0;
+        while (start < end) {
+            int keyEnd = seriesKeyEnd(buf, start);
+            int lineEnd = keyEnd;
+            while (buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            Node node = route(buf, start, keyEnd, now);
+            node.batch.appendLine(buf, start, lineEnd + 1 - start);
+            node.points.inc();
+            if (node.http.isBatchFull(node.batch)) {
+                try {
+                    flush(node);
+                } catch (InfluxdbException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            start = lineEnd + 1;
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * 各节点并行发送，失败节点的数据转移到哈希环上的下一个可用节点再发送，直到没有可转移的节点
+     *
+     * @throws InfluxdbException 有数据最终没有发送成功，或被influxdb拒绝(4xx)
+     */
+    @Override
+    public void flush() throws InfluxdbException {
+        List<Node> pending = new ArrayList<>(nodes.length);
+        for (Node node : nodes) {
+            if (node.batch.lines() > 0) {
+                pending.add(node);
+            }
+        }
+        sendWithFailover(pending);
+    }
+
+    private void flush(Node node) throws InfluxdbException {
+        List<Node> pending = new ArrayList<>(1);
+        pending.add(node);
+        sendWithFailover(pending);
+    }
+
+    /**
+     * 失败节点的数据转移到其他节点时不超出目标节点的batch上限，装不下的部分留在moving中，目标节点发送后下一轮继续转移
+     */
+    private void sendWithFailover(List<Node> pending) throws InfluxdbException {
+        InfluxdbException lastError = null;
+        InfluxdbException rejectedError = null;
+        int lost = 0;
+        int rejected = 0;
+        int failedRounds = 0;
+        List<Node> moving = new ArrayList<>(0);//发送失败、数据尚未全部转移的节点
+        while (!pending.isEmpty() || !moving.isEmpty()) {
+            List<Node> failed = sendAll(pending);
+            pending.clear();
+            if (!failed.isEmpty()) {
+                failedRounds++;
+            }
+            long now = System.currentTimeMillis();
+            for (Node node : failed) {
+                InfluxdbException error = node.error;
+                node.error = null;
+                if (InfluxdbHttp.isRejected(error)) {//数据被拒绝，换节点也不会成功
+                    rejectedError = error;
+                    rejected += node.batch.lines();
+                    node.batch.reset();
+                    continue;
+                }
+                lastError = error;
+                if (!moving.contains(node)) {
+                    moving.add(node);
+                }
+            }
+            for (Iterator<Node> it = moving.iterator(); it.hasNext(); ) {
+                Node node = it.next();
+                if (failedRounds >= nodes.length || !hasAvailableNode(now)) {//有失败的轮次至少有一个节点被标记为不可用
+                    lost += node.batch.lines();
+                    node.batch.reset();
+                    it.remove();
+                } else if (reroute(node.batch, now, pending)) {
+                    it.remove();
+                }
+            }
+        }
+        if (rejectedError != null) {
+            throw new InfluxdbException(rejected + " points rejected by influxdb"
+                    + (lost > 0 ? "," + lost + " points lost as all nodes are down" : "") + ". "
+                    + rejectedError.getMessage(), rejectedError);
+        }
+        if (lastError != null) {
+            if (lost > 0) {
+                throw new InfluxdbException("All influxdb nodes are down," + lost + " points lost. "
+                        + lastError.getMessage(), lastError);
+            }
+            logger.warn("Influxdb node failed,points moved to next node on the hash ring. {}", lastError.getMessage());
+        }
+    }
+
+    /**
+     * 并行发送，发送成功的batch被清空
+     *
+     * @return 发送失败的节点
+     */
+    private List<Node> sendAll(List<Node> pending) {
+        List<Node> failed = new ArrayList<>(0);
+        if (pending.size() == 1) {
+            Node node = pending.get(0);
+            if (!node.send()) {
+                failed.add(node);
+            }
+            return failed;
+        }
+        List<Future<Boolean>> futures = new ArrayList<>(pending.size());
+        for (final Node node : pending) {
+            futures.add(flusher.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return node.send();
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Node node = pending.get(i);
+            try {
+                if (!futures.get(i).get()) {
+                    failed.add(node);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                node.fail(new InfluxdbException("Interrupted while sending to influxdb", e));
+                failed.add(node);
+            } catch (ExecutionException e) {
+                node.fail(new InfluxdbException(e.getCause().getMessage(), e.getCause()));
+                failed.add(node);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * 把失败节点的数据按当前可用节点重新路由，目标节点加入pending;目标节点的batch装不下时停止，
+     * 已转移的行从batch中移除，其余的留待目标节点发送后再转移
+     *
+     * @return 是否已全部转移
+     */
+    private boolean reroute(LineProtocolWriter batch, long now, List<Node> pending) {
+        byte[] buf = batch.buffer();
+        int end = batch.size();
+        int start = 0;
+        int moved = 0;
+        boolean done = true;
+        while (start < end) {
+            int keyEnd = seriesKeyEnd(buf, start);
+            int lineEnd = keyEnd;
+            while (buf[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            Node node = route(buf, start, keyEnd, now);
+            if (!pending.contains(node)) {
+                pending.add(node);
+            }
+            // 目标就是原节点(不可用时间已过)时整批重发
+            if (node.batch == batch || !node.http.fitsInBatch(node.batch, 1, lineEnd + 1 - start)) {
+                done = false;
+                break;
+            }
+            node.batch.appendLine(buf, start, lineEnd + 1 - start);
+            node.points.inc();
+            failoverPoints.inc();
+            moved++;
+            start = lineEnd + 1;
+        }
+        if (done) {
+            batch.reset();
+        } else {
+            batch.removeFirst(start, moved);
+        }
+        return done;
+    }
+
+    /**
+     * 哈希环上该series之后第一个可用的节点，都不可用时返回第一个节点(仍然尝试发送)
+     */
+    private Node route(byte[] buf, int start, int keyEnd, long now) {
+        long hash = hash(buf, start, keyEnd);
+        int index = Arrays.binarySearch(ringHashes, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int n = 0; n < ringHashes.length; n++) {
+            Node node = nodes[ringNodes[(index + n) % ringHashes.length]];
+            if (node.isAvailable(now)) {
+                return node;
+            }
+        }
+        return nodes[ringNodes[index % ringHashes.length]];
+    }
+
+    private boolean hasAvailableNode(long now) {
+        for (Node node : nodes) {
+            if (node.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * series部分(measurement及tag)结束的位置，即第一个未转义的空格
+     */
+    private static int seriesKeyEnd(byte[] buf, int start) {
+        int i = start;
+        while (buf[i] != ' ' && buf[i] != '\n') {
+            if (buf[i] == '\\') {
+                i++;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * FNV-1a 再经过 murmur3 的 fmix64 打散
+     */
+    static long hash(byte[] buf, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            h ^= buf[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 当前不可用的节点数
+     *
+     * @return
+     */
+    public int getDownNodes() {
+        long now = System.currentTimeMillis();
+        int down = 0;
+        for (Node node : nodes) {
+            if (!node.isAvailable(now)) {
+                down++;
+            }
+        }
+        return down;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        Map<String, Metric> metrics = new HashMap<>();
+        metrics.put("nodes.down", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getDownNodes();
+            }
+        });
+        metrics.put("failover.points", failoverPoints);
+        for (int i = 0; i < nodes.length; i++) {
+            metrics.put("node" + i + ".points", nodes[i].points);
+            metrics.put("node" + i + ".failures", nodes[i].failures);
+            metrics.put("node" + i + ".rejected", nodes[i].rejected);
+        }
+        return metrics;
+    }
+
+    /**
+     * 停止发送线程并关闭各节点
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        for (Node node : nodes) {
+            node.http.close();
+        }
+    }
+
+    private final class Node {
+        private final InfluxdbHttp http;
+        private final LineProtocolWriter batch = new LineProtocolWriter();
+        private final Counter points = new Counter();//路由到该节点的point数
+        private final Counter failures = new Counter();
+        private final Counter rejected = new Counter();//被influxdb以4xx拒绝的batch数，不标记节点不可用
+        private volatile long downUntil;
+        private InfluxdbException error;
+
+        private Node(InfluxdbHttp http) {
+            this.http = http;
+        }
+
+        private boolean isAvailable(long now) {
+            return now >= downUntil;
+        }
+
+        /**
+         * 网络错误、5xx及熔断时标记节点不可用，由调用方转移到下一个节点;4xx只记录错误，节点仍可用
+         *
+         * @return 是否发送成功，成功后清空batch
+         */
+        private boolean send() {
+            try {
+                http.send(batch);
+                batch.reset();
+                return true;
+            } catch (InfluxdbException e) {
+                if (InfluxdbHttp.isRejected(e)) {
+                    rejected.inc();
+                    error = e;
+                } else {
+                    fail(e);
+                }
+                return false;
+            } catch (RuntimeException e) {
+                fail(new InfluxdbException(e.getMessage(), e));
+                return false;
+            }
+        }
+
+        private void fail(InfluxdbException e) {
+            failures.inc();
+            downUntil = System.currentTimeMillis() + downTimeMillis;
+            error = e;
+        }
+    }
+}
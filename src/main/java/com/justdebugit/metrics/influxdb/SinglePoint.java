@@ -45,6 +45,23 @@ class SinglePoint {
     }
 
 
+    /**
+     * 以line protocol格式写入writer
+     *
+     * @param writer
+     * @return 是否写入(没有field的point会被忽略)
+     */
+    boolean writeTo(LineProtocolWriter writer) {
+        writer.measurement(measurement);
+        for (Map.Entry<String, String> entry : tagMap.entrySet()) {
+            writer.tag(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Object> entry : fieldMap.entrySet()) {
+            writer.field(null, entry.getKey(), entry.getValue());
+        }
+        return writer.endLine(timestamp);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,178 @@
+package com.justdebugit.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 以src/test/resources/proc下的文件为/proc解析各项指标
+ *
+ * @author justdebugit
+ */
+public class ProcMetricSetTest {
+    private static final String[] FIXTURES = {"stat", "loadavg", "meminfo", "diskstats", "net/dev", "self/status"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.getRoot();
+        for (String name : FIXTURES) {
+            copy(name, name);
+        }
+        File fd = new File(root, "self/fd");
+        assertTrue(fd.mkdirs());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(new File(fd, String.valueOf(i)).createNewFile());
+        }
+    }
+
+    @Test
+    public void parsesKernelCounters() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertEquals(987654L, value(metrics, "[os.kernel].ctxt"));
+        assertEquals(4321L, value(metrics, "[os.kernel].processes"));
+        assertEquals(3L, value(metrics, "[os.kernel].procs_running"));
+        assertEquals(1L, value(metrics, "[os.kernel].procs_blocked"));
+    }
+
+    @Test
+    public void cpuPercentNeedsTwoSamples() throws Exception {
+        ProcMetricSet set = new ProcMetricSet(root.getPath(), 200, TimeUnit.MILLISECONDS);
+        Map<String, Metric> metrics = set.getMetrics();
+        assertTrue(metrics.containsKey("[os.cpu|core=all].user"));
+        assertTrue(metrics.containsKey("[os.cpu|core=1].steal"));
+        assertFalse(metrics.containsKey("[os.cpu|core=2].user"));
+        assertNull(value(metrics, "[os.cpu|core=all].user"));
+
+        copy("stat.next", "stat");
+        Thread.sleep(250);
+        assertEquals(20.0, (Double) value(metrics, "[os.cpu|core=all].user"), 1e-9);
+        assertEquals(0.0, (Double) value(metrics, "[os.cpu|core=all].nice"), 1e-9);
+        assertEquals(10.0, (Double) value(metrics, "[os.cpu|core=all].system"), 1e-9);
+        assertEquals(60.0, (Double) value(metrics, "[os.cpu|core=all].idle"), 1e-9);
+        assertEquals(4.0, (Double) value(metrics, "[os.cpu|core=all].iowait"), 1e-9);
+        assertEquals(6.0, (Double) value(metrics, "[os.cpu|core=all].softirq"), 1e-9);
+        assertEquals(30.0, (Double) value(metrics, "[os.cpu|core=0].user"), 1e-9);
+        assertEquals(15.0, (Double) value(metrics, "[os.cpu|core=0].system"), 1e-9);
+        assertEquals(50.0, (Double) value(metrics, "[os.cpu|core=0].idle"), 1e-9);
+        assertEquals(5.0, (Double) value(metrics, "[os.cpu|core=0].iowait"), 1e-9);
+        assertEquals(990000L, value(metrics, "[os.kernel].ctxt"));
+    }
+
+    @Test
+    public void parsesLoadAverage() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertEquals(0.52, (Double) value(metrics, "[os.load].load1"), 1e-9);
+        assertEquals(1.25, (Double) value(metrics, "[os.load].load5"), 1e-9);
+        assertEquals(10.08, (Double) value(metrics, "[os.load].load15"), 1e-9);
+    }
+
+    @Test
+    public void parsesMeminfoInBytes() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertEquals(16303428L * 1024, value(metrics, "[os.mem].total"));
+        assertEquals(1234567L * 1024, value(metrics, "[os.mem].free"));
+        assertEquals(8000000L * 1024, value(metrics, "[os.mem].available"));
+        assertEquals(234567L * 1024, value(metrics, "[os.mem].buffers"));
+        assertEquals(5678901L * 1024, value(metrics, "[os.mem].cached"));
+        assertEquals(2097148L * 1024, value(metrics, "[os.mem].swap_total"));
+        assertEquals(2000000L * 1024, value(metrics, "[os.mem].swap_free"));
+        assertEquals((16303428L - 8000000L) * 1024, value(metrics, "[os.mem].used"));
+    }
+
+    @Test
+    public void parsesWholeDisksOnly() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertFalse(metrics.containsKey("[os.disk|device=loop0].reads"));
+        assertFalse(metrics.containsKey("[os.disk|device=ram0].reads"));
+        assertFalse(metrics.containsKey("[os.disk|device=sda1].reads"));
+        assertFalse(metrics.containsKey("[os.disk|device=nvme0n1p1].reads"));
+
+        assertEquals(1000L, value(metrics, "[os.disk|device=sda].reads"));
+        assertEquals(40000L * 512, value(metrics, "[os.disk|device=sda].read_bytes"));
+        assertEquals(300L, value(metrics, "[os.disk|device=sda].read_ms"));
+        assertEquals(2000L, value(metrics, "[os.disk|device=sda].writes"));
+        assertEquals(80000L * 512, value(metrics, "[os.disk|device=sda].write_bytes"));
+        assertEquals(900L, value(metrics, "[os.disk|device=sda].write_ms"));
+        assertEquals(1100L, value(metrics, "[os.disk|device=sda].io_ms"));
+        assertEquals(3000L, value(metrics, "[os.disk|device=nvme0n1].reads"));
+        assertEquals(128000L * 512, value(metrics, "[os.disk|device=nvme0n1].write_bytes"));
+    }
+
+    @Test
+    public void keepsDisksNamedLikeOtherDiskWithDigits() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertEquals(500L, value(metrics, "[os.disk|device=dm-1].reads"));
+        assertEquals(700L, value(metrics, "[os.disk|device=dm-10].reads"));
+        assertEquals(100L, value(metrics, "[os.disk|device=md1].reads"));
+        assertEquals(110L, value(metrics, "[os.disk|device=md10].reads"));
+        assertFalse(metrics.containsKey("[os.disk|device=md1p1].reads"));
+    }
+
+    @Test
+    public void parsesNetDevWithoutLoopback() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertFalse(metrics.containsKey("[os.net|iface=lo].rx_bytes"));
+        assertEquals(123456789L, value(metrics, "[os.net|iface=eth0].rx_bytes"));
+        assertEquals(98765L, value(metrics, "[os.net|iface=eth0].rx_packets"));
+        assertEquals(1L, value(metrics, "[os.net|iface=eth0].rx_errs"));
+        assertEquals(2L, value(metrics, "[os.net|iface=eth0].rx_drop"));
+        assertEquals(87654321L, value(metrics, "[os.net|iface=eth0].tx_bytes"));
+        assertEquals(54321L, value(metrics, "[os.net|iface=eth0].tx_packets"));
+        assertEquals(3L, value(metrics, "[os.net|iface=eth0].tx_errs"));
+        assertEquals(4L, value(metrics, "[os.net|iface=eth0].tx_drop"));
+    }
+
+    @Test
+    public void parsesSelfStatus() {
+        Map<String, Metric> metrics = new ProcMetricSet(root.getPath()).getMetrics();
+        assertEquals(42L, value(metrics, "[os.process].threads"));
+        assertEquals(512000L * 1024, value(metrics, "[os.process].rss"));
+        assertEquals(1500L, value(metrics, "[os.process].voluntary_ctxt_switches"));
+        assertEquals(30L, value(metrics, "[os.process].nonvoluntary_ctxt_switches"));
+        assertEquals(3L, value(metrics, "[os.process].fds"));
+    }
+
+    @Test
+    public void missingFilesProduceNoMetrics() {
+        Map<String, Metric> metrics = new ProcMetricSet(new File(root, "absent").getPath()).getMetrics();
+        assertTrue(metrics.isEmpty());
+    }
+
+    /**
+     * 原地覆盖文件内容，ProcMetricSet保持文件打开，替换文件(新inode)时读不到新内容
+     */
+    private void copy(String resource, String target) throws IOException {
+        File file = new File(root, target);
+        file.getParentFile().mkdirs();
+        try (InputStream in = getClass().getResourceAsStream("/proc/" + resource)) {
+            Files.write(file.toPath(), IOUtils.toByteArray(in));
+        }
+    }
+
+    private static Object value(Map<String, Metric> metrics, String name) {
+        Metric metric = metrics.get(name);
+        assertTrue(name, metric instanceof Gauge);
+        return ((Gauge<?>) metric).getValue();
+    }
+}
@@ -0,0 +1,211 @@
+package com.justdebugit.metrics.influxdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 用一个按顺序返回预设响应的本地服务端测试 {@link HttpConnection} 的响应解析及连接复用
+ *
+ * @author justdebugit
+ */
+public class HttpConnectionTest {
+    private static final byte[] HEAD = "POST /write?db=test HTTP/1.1\r\nHost: localhost\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BODY = "cpu value=1 1\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private ServerSocket server;
+    private Thread serverThread;
+    private HttpConnection conn;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "http-connection-test-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        conn = new HttpConnection("127.0.0.1", server.getLocalPort(), 1000, 2000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.close();
+        server.close();
+        serverThread.join(1000);
+    }
+
+    @Test
+    public void parsesStatusAndKeepsErrorBody() throws Exception {
+        String error = "{\"error\":\"unable to parse 'cpu value=': missing field value\"}";
+        responses.add("HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nContent-Length: "
+                + error.length() + "\r\n\r\n" + error);
+        assertEquals(400, request());
+        assertEquals(error, conn.errorBody());
+        assertTrue(conn.isKeepAlive());
+    }
+
+    @Test
+    public void skipsInterimContinue() throws Exception {
+        responses.add("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 204 No Content\r\nX-Influxdb-Version: 0.9.6\r\n\r\n");
+        assertEquals(204, request());
+        assertEquals("", conn.errorBody());
+    }
+
+    @Test
+    public void rejectsInvalidStatusLine() throws Exception {
+        responses.add("HTTP/1.1 abc Broken\r\n\r\n");
+        try {
+            request();
+            fail("invalid status line accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("invalid http status line"));
+        }
+    }
+
+    @Test
+    public void readsChunkedBodyAndTrailers() throws Exception {
+        responses.add("HTTP/1.1 500 Internal Server Error\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n6;name=value\r\n world\r\n0\r\nX-Trailer: done\r\n\r\n");
+        responses.add("HTTP/1.1 204 No Content\r\n\r\n");
+        assertEquals(500, request());
+        assertEquals("hello world", conn.errorBody());
+        // 下一个响应紧接在结束chunk之后，读取位置正确才能解析出204
+        assertEquals(204, request());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void skipsBodyLargerThanBuffer() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            body.append("0123456789");
+        }
+        responses.add("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+        responses.add("HTTP/1.1 503 Service Unavailable\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+        responses.add("HTTP/1.1 204 No Content\r\n\r\n");
+        assertEquals(200, request());
+        assertEquals("", conn.errorBody());
+        assertEquals(503, request());
+        assertEquals(body.substring(0, 1024), conn.errorBody());
+        assertEquals(204, request());
+    }
+
+    @Test
+    public void reusesHttp11Connection() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            responses.add("HTTP/1.1 204 No Content\r\n\r\n");
+        }
+        assertFalse(conn.isReused());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(204, request());
+            assertTrue(conn.isKeepAlive());
+        }
+        assertTrue(conn.isReused());
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void closesHttp11OnConnectionClose() throws Exception {
+        responses.add("HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n");
+        assertEquals(204, request());
+        assertFalse(conn.isKeepAlive());
+    }
+
+    @Test
+    public void closesHttp10ByDefault() throws Exception {
+        responses.add("HTTP/1.0 204 No Content\r\n\r\n");
+        assertEquals(204, request());
+        assertFalse(conn.isKeepAlive());
+    }
+
+    @Test
+    public void keepsHttp10WithKeepAlive() throws Exception {
+        responses.add("HTTP/1.0 204 No Content\r\nConnection: keep-alive\r\n\r\n");
+        responses.add("HTTP/1.0 204 No Content\r\nConnection: Keep-Alive\r\n\r\n");
+        assertEquals(204, request());
+        assertTrue(conn.isKeepAlive());
+        assertEquals(204, request());
+        assertTrue(conn.isKeepAlive());
+        assertEquals(1, accepted.get());
+    }
+
+    private int request() throws IOException {
+        conn.writeRequest(HEAD, BODY, 0, BODY.length);
+        return conn.readResponse();
+    }
+
+    /**
+     * 依次接受连接，每读完一个Content-Length请求就写出队列中的下一个响应
+     */
+    private void serve() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                accepted.incrementAndGet();
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                while (readRequest(in)) {
+                    String response = responses.poll(1, TimeUnit.SECONDS);
+                    if (response == null) {
+                        break;
+                    }
+                    out.write(response.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // server closed
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            head.write(b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))
+                    ? matched + 1 : 0;
+        }
+        int contentLength = 0;
+        for (String line : head.toString("US-ASCII").split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+package com.justdebugit.metrics.influxdb;
+
+import com.codahale.metrics.Counter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在本地DatagramSocket上接收 {@link InfluxdbUdp} 发出的数据报
+ *
+ * @author justdebugit
+ */
+public class InfluxdbUdpTest {
+    private static final int MTU = 100;
+
+    private DatagramSocket server;
+    private InfluxdbUdp udp;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(200);
+        udp = InfluxdbUdp.newBuilder().host("127.0.0.1").port(server.getLocalPort()).mtu(MTU).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        udp.close();
+        server.close();
+    }
+
+    @Test
+    public void packsLinesUpToMtu() throws Exception {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            writer.measurement("cpu").tag("host", "server" + i).field("value", i);
+            writer.endLine(1000L + i);
+        }
+        for (String line : writer.toString().split("\n")) {
+            expected.add(line + "\n");
+        }
+        udp.write(writer);
+        udp.flush();
+
+        List<String> packets = receiveAll();
+        assertTrue(packets.size() > 1);
+        List<String> received = new ArrayList<>();
+        for (int i = 0; i < packets.size(); i++) {
+            String packet = packets.get(i);
+            assertTrue(packet.length() <= MTU);
+            assertTrue("line split across packets", packet.endsWith("\n"));
+            if (i < packets.size() - 1) {
+                // 下一个数据报的第一行放不进当前数据报，否则应该打包在一起
+                String next = packets.get(i + 1);
+                assertTrue(packet.length() + next.indexOf('\n') + 1 > MTU);
+            }
+            for (String line : packet.split("\n")) {
+                received.add(line + "\n");
+            }
+        }
+        assertEquals(expected, received);
+        assertEquals(packets.size(), ((Counter) udp.getMetrics().get("packets.sent")).getCount());
+        assertEquals(writer.size(), ((Counter) udp.getMetrics().get("bytes.sent")).getCount());
+    }
+
+    @Test
+    public void dropsPointLargerThanMtu() throws Exception {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < MTU; i++) {
+            big.append('x');
+        }
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("small").field("value", 1L);
+        writer.endLine(1);
+        writer.measurement("big").tag("tag", big.toString()).field("value", 2L);
+        writer.endLine(2);
+        writer.measurement("small").field("value", 3L);
+        writer.endLine(3);
+        udp.write(writer);
+        udp.flush();
+
+        List<String> packets = receiveAll();
+        assertEquals(1, packets.size());
+        assertEquals("small value=1 1\nsmall value=3 3\n", packets.get(0));
+        assertEquals(1, ((Counter) udp.getMetrics().get("points.dropped")).getCount());
+    }
+
+    @Test
+    public void flushSendsPartialPacket() throws Exception {
+        udp.writeData(SinglePoint.newBuilder("mem").addField("free", 10L).setTimestamp(5).build());
+        assertEquals(0, receiveAll().size());
+        udp.flush();
+        List<String> packets = receiveAll();
+        assertEquals(1, packets.size());
+        assertEquals("mem free=10 5\n", packets.get(0));
+    }
+
+    private List<String> receiveAll() throws Exception {
+        List<String> packets = new ArrayList<>();
+        byte[] buf = new byte[65536];
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                server.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return packets;
+            }
+            packets.add(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.justdebugit.metrics.influxdb;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LineProtocolWriter} 的转义、数值格式及复用
+ *
+ * @author justdebugit
+ */
+public class LineProtocolWriterTest {
+
+    @Test
+    public void escapesMeasurement() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("cpu load,total=x").field("value", 1L);
+        writer.endLine(1);
+        // measurement中的'='不需要转义
+        assertEquals("cpu\\ load\\,total=x value=1 1\n", writer.toString());
+    }
+
+    @Test
+    public void escapesTagsAndFields() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m")
+                .tag("host name", "web 1,a=b")
+                .tag("k=v", "x")
+                .field("f,1 a=b", 2L);
+        writer.endLine(3);
+        assertEquals("m,host\\ name=web\\ 1\\,a\\=b,k\\=v=x f\\,1\\ a\\=b=2 3\n", writer.toString());
+    }
+
+    @Test
+    public void skipsEmptyTags() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m").tag("", "a").tag("b", "").tag("c", null).tag("d", "e").field("v", 1L);
+        writer.endLine(1);
+        assertEquals("m,d=e v=1 1\n", writer.toString());
+    }
+
+    @Test
+    public void encodesNonAscii() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("请求").tag("城市", "北京 朝阳").field("耗时", 5L);
+        writer.endLine(1);
+        assertEquals("请求,城市=北京\\ 朝阳 耗时=5 1\n", new String(writer.buffer(), 0, writer.size(), LineProtocolWriter.UTF_8));
+    }
+
+    @Test
+    public void formatsIntegers() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m").field("a", 0L).field("b", -42L).field("c", Long.MAX_VALUE).field("d", Long.MIN_VALUE);
+        writer.endLine(-1);
+        assertEquals("m a=0,b=-42,c=9223372036854775807,d=-9223372036854775808 -1\n", writer.toString());
+    }
+
+    @Test
+    public void formatsDoublesWithTwoDecimals() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m")
+                .field("a", 1.0)
+                .field("b", 0.125)
+                .field("c", 2.675000001)
+                .field("d", -0.004)
+                .field("e", -1.999)
+                .field("f", 123456.789);
+        writer.endLine(1);
+        assertEquals("m a=1.00,b=0.13,c=2.68,d=0.00,e=-2.00,f=123456.79 1\n", writer.toString());
+    }
+
+    @Test
+    public void formatsLargeDoublesWithDoubleToString() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m").field("v", 1.5e20);
+        writer.endLine(1);
+        assertEquals("m v=1.5E20 1\n", writer.toString());
+    }
+
+    @Test
+    public void compactWritesIntegerSuffixAndShortestDoubles() {
+        LineProtocolWriter writer = new LineProtocolWriter(true);
+        writer.measurement("m").field("i", 7L).field("a", 2.0).field("b", 0.1 + 0.2).field("c", 1.0E-5);
+        writer.endLine(1);
+        assertEquals("m i=7i,a=2,b=0.30000000000000004,c=1E-5 1\n", writer.toString());
+    }
+
+    @Test
+    public void objectFieldsKeepIntegralType() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m")
+                .field(null, "i", (Object) 3)
+                .field(null, "l", (Object) 4L)
+                .field(null, "d", (Object) 0.5f)
+                .field(null, "s", (Object) "text");
+        writer.endLine(1);
+        assertEquals("m i=3,l=4,d=0.50 1\n", writer.toString());
+    }
+
+    @Test
+    public void skipsNaNAndInfinity() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("m")
+                .field("nan", Double.NaN)
+                .field("inf", Double.POSITIVE_INFINITY)
+                .field("ninf", Double.NEGATIVE_INFINITY)
+                .field("ok", 1.5);
+        writer.endLine(1);
+        assertEquals("m ok=1.50 1\n", writer.toString());
+    }
+
+    @Test
+    public void dropsLineWithoutValidFields() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("kept").field("v", 1L);
+        assertTrue(writer.endLine(1));
+        writer.measurement("nan").tag("t", "x").field("v", Double.NaN).field(null, "s", (Object) "text");
+        assertFalse(writer.endLine(2));
+        assertEquals("kept v=1 1\n", writer.toString());
+        assertEquals(1, writer.lines());
+    }
+
+    @Test
+    public void abortsUnfinishedLine() {
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.measurement("a").field("v", 1L);
+        writer.endLine(1);
+        writer.measurement("b").field("v", 2L);
+        assertEquals(8, writer.size());//未完成的行不计入size
+        writer.measurement("c").field("v", 3L);
+        writer.endLine(3);
+        assertEquals("a v=1 1\nc v=3 3\n", writer.toString());
+    }
+
+    @Test
+    public void reusesBufferAfterReset() {
+        LineProtocolWriter writer = new LineProtocolWriter(16);
+        for (int i = 0; i < 100; i++) {
+            writer.measurement("measurement").tag("host", "server" + i).field("value", i);
+            writer.endLine(i);
+        }
+        byte[] buffer = writer.buffer();
+        assertEquals(100, writer.lines());
+
+        writer.reset();
+        assertEquals(0, writer.size());
+        assertEquals(0, writer.lines());
+        writer.measurement("m").field("v", 1L);
+        writer.endLine(1);
+        assertSame(buffer, writer.buffer());
+        assertEquals("m v=1 1\n", writer.toString());
+        assertEquals(1, writer.lines());
+    }
+
+    @Test
+    public void appendsCompletedLinesOnly() {
+        LineProtocolWriter a = new LineProtocolWriter();
+        a.measurement("a").field("v", 1L);
+        a.endLine(1);
+        a.measurement("pending").field("v", 2L);
+        LineProtocolWriter b = new LineProtocolWriter();
+        b.append(a);
+        assertEquals("a v=1 1\n", b.toString());
+        assertEquals(1, b.lines());
+    }
+
+    @Test
+    public void encodesSeriesKeyWithSortedTags() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("z", "1");
+        tags.put("a b", "2");
+        tags.put("m", "3");
+        LineProtocolWriter writer = new LineProtocolWriter();
+        writer.series(LineProtocolWriter.encodeSeriesKey("m m", tags))
+                .field(LineProtocolWriter.encodeFieldKey("p_", "v"), 1L);
+        writer.endLine(1);
+        assertEquals("m\\ m,a\\ b=2,m=3,z=1 p_v=1 1\n", writer.toString());
+    }
+}